@@ -0,0 +1,195 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An attachment's name, content type, length and (when known) MD5 digest, and in some cases its
+ * content.
+ * <p>
+ * The Database.getAttachment() methods that write the attachment somewhere else return one
+ * describing what was written.  Database.getDocumentWithAttachments() returns them with their
+ * content.  To send attachments along with a document in Database.saveDocument(Document, List),
+ * create them from a file, buffer or stream with the of() methods.
+ * <p>
+ * The digest is in the same form as the "digest" of an attachment stub in a document
+ * ("md5-" followed by the base64 encoded MD5 of the content).  When the server sent a
+ * Content-MD5 header, the downloaded content has been checked against it.
+ */
+public class Attachment {
+	private final String name;
+	private final String contentType;
+	private final long length;
+	private final String digest;
+	/** the content: a File, ByteBuffer or InputStream (null if it wasn't kept) */
+	private final Object content;
+
+	Attachment(String name, String contentType, long length, String digest) {
+		this(name, contentType, length, digest, null);
+	}
+
+	Attachment(String name, String contentType, long length, String digest, Object content) {
+		this.name = name;
+		this.contentType = contentType;
+		this.length = length;
+		this.digest = digest;
+		this.content = content;
+	}
+
+	/**
+	 * An attachment to upload from a file
+	 * @param name
+	 * @param contentType
+	 * @param file
+	 * @return
+	 */
+	public static Attachment of(String name, String contentType, File file) {
+		return new Attachment(name, contentType, file.length(), null, file);
+	}
+
+	/**
+	 * An attachment to upload from the remaining bytes of a buffer
+	 * @param name
+	 * @param contentType
+	 * @param data
+	 * @return
+	 */
+	public static Attachment of(String name, String contentType, ByteBuffer data) {
+		return new Attachment(name, contentType, data.remaining(), null, data.slice());
+	}
+
+	/**
+	 * An attachment to upload from a stream.  Exactly length bytes are read from it, and it isn't
+	 * closed.  A save with a stream can't be repeated, so with cookie authentication a session that
+	 * expires just then makes it fail rather than being retried.
+	 * @param name
+	 * @param contentType
+	 * @param in
+	 * @param length
+	 * @return
+	 */
+	public static Attachment of(String name, String contentType, InputStream in, long length) {
+		return new Attachment(name, contentType, length, null, in);
+	}
+
+	/**
+	 * The content of an attachment read with Database.getDocumentWithAttachments()
+	 * @return the content, or null if this attachment doesn't hold it
+	 */
+	public ByteBuffer getContent() {
+		return (content instanceof ByteBuffer) ? ((ByteBuffer) content).duplicate() : null;
+	}
+
+	/**
+	 * Can the content be written more than once?
+	 */
+	boolean isRepeatable() {
+		return !(content instanceof InputStream);
+	}
+
+	/**
+	 * Writes the content to a request body
+	 * @param out
+	 * @throws IOException
+	 */
+	void writeTo(OutputStream out) throws IOException {
+		if (content instanceof File) {
+			FileInputStream in = new FileInputStream((File) content);
+			try {
+				FileChannel channel = in.getChannel();
+				WritableByteChannel target = Channels.newChannel(out);
+				long position = 0;
+				while (position < length) {
+					long n = channel.transferTo(position, length - position, target);
+					if (n == 0 && position >= channel.size()) {
+						// the file has shrunk since the attachment was made
+						throw new IOException("attachment " + name + " ended " + (length - position) + " bytes short");
+					}
+					position += n;
+				}
+			} finally {
+				in.close();
+			}
+		} else if (content instanceof ByteBuffer) {
+			ByteBuffer data = ((ByteBuffer) content).duplicate();
+			WritableByteChannel target = Channels.newChannel(out);
+			while (data.hasRemaining()) {
+				target.write(data);
+			}
+		} else if (content instanceof InputStream) {
+			InputStream in = (InputStream) content;
+			byte[] buf = new byte[8192];
+			long remaining = length;
+			while (remaining > 0) {
+				int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+				if (n == -1) {
+					throw new IOException("attachment " + name + " ended " + remaining + " bytes short");
+				}
+				out.write(buf, 0, n);
+				remaining -= n;
+			}
+		} else {
+			throw new IllegalStateException("attachment " + name + " has no content to send");
+		}
+	}
+
+	/**
+	 * The name of the attachment
+	 * @return
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * The content type the attachment was stored with
+	 * @return
+	 */
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * The length of the attachment, in bytes
+	 * @return
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * The MD5 digest of the content, as "md5-" + base64
+	 * @return the digest, or null if it isn't known
+	 */
+	public String getDigest() {
+		return digest;
+	}
+
+	@Override
+	public String toString() {
+		return name + " [" + contentType + ", " + length + " bytes, " + digest + "]";
+	}
+}
@@ -0,0 +1,287 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * A bounded, least-recently-used cache of attachment contents on disk, keyed by the attachment's
+ * digest (the "digest" of its stub in the document's _attachments).  Since the digest changes
+ * whenever the content does, a cached entry never needs revalidating: Database.getAttachment(Document,
+ * String) returns it without asking the server at all.
+ * <p>
+ * Each attachment is one file in the cache directory.  Files are downloaded under a temporary name
+ * and renamed into place once complete, so a crash never leaves a partial entry behind, and they are
+ * read back memory-mapped.  The files already in the directory are picked up when the cache is
+ * created (oldest modified first in line for eviction), so the cache survives restarts.  Several
+ * databases can share one cache.
+ * <p>
+ * Ex usage: <br>
+ * db.setAttachmentCache(new AttachmentCache(new File("/var/cache/couchdb4j"), 10L * 1024 * 1024 * 1024));
+ *
+ * @see Database#setAttachmentCache(AttachmentCache)
+ */
+public class AttachmentCache {
+	private static final String TEMP_PREFIX = ".download-";
+
+	private final File directory;
+	private final long maxBytes;
+	private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	private long size = 0;
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Creates a cache in the given directory (created if it doesn't exist).
+	 * @param directory
+	 * @param maxBytes the total size of the cached attachments
+	 * @throws IOException if the directory can't be created
+	 */
+	public AttachmentCache(File directory, long maxBytes) throws IOException {
+		if (maxBytes <= 0) {
+			throw new IllegalArgumentException("maxBytes must be positive");
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("unable to create " + directory);
+		}
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		load();
+	}
+
+	/**
+	 * Picks up the files left by an earlier cache in the same directory
+	 */
+	private void load() {
+		File[] files = directory.listFiles();
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long diff = a.lastModified() - b.lastModified();
+				return (diff < 0) ? -1 : (diff > 0) ? 1 : 0;
+			}
+		});
+		for (File f : files) {
+			if (f.getName().startsWith(TEMP_PREFIX)) {
+				// left over from an interrupted download
+				f.delete();
+			} else if (f.isFile()) {
+				entries.put(f.getName(), Long.valueOf(f.length()));
+				size += f.length();
+			}
+		}
+		evict();
+	}
+
+	/**
+	 * The cached content for a digest, mapped read-only
+	 * @param digest
+	 * @return the content, or null if it isn't cached
+	 */
+	synchronized ByteBuffer get(String digest) throws IOException {
+		String key = fileName(digest);
+		if (entries.get(key) == null) {
+			misses++;
+			return null;
+		}
+		File file = new File(directory, key);
+		if (!file.isFile()) {
+			// deleted behind our back
+			size -= entries.remove(key).longValue();
+			misses++;
+			return null;
+		}
+		hits++;
+		file.setLastModified(System.currentTimeMillis());
+		return map(file);
+	}
+
+	/**
+	 * A file in the cache directory to download an attachment into, before it is added with put()
+	 * @return
+	 * @throws IOException
+	 */
+	File createTempFile() throws IOException {
+		return File.createTempFile(TEMP_PREFIX, ".tmp", directory);
+	}
+
+	/**
+	 * Adds a downloaded attachment, moving the file into place, and returns its content mapped
+	 * read-only.  An attachment bigger than the whole cache is returned but not kept.
+	 * @param digest
+	 * @param downloaded a file from createTempFile()
+	 * @return
+	 * @throws IOException
+	 */
+	synchronized ByteBuffer put(String digest, File downloaded) throws IOException {
+		long length = downloaded.length();
+		if (length > maxBytes) {
+			try {
+				return map(downloaded);
+			} finally {
+				downloaded.delete();
+			}
+		}
+		String key = fileName(digest);
+		File file = new File(directory, key);
+		Long old = entries.remove(key);
+		if (old != null) {
+			size -= old.longValue();
+		}
+		if (!downloaded.renameTo(file)) {
+			// renameTo won't replace an existing file everywhere
+			file.delete();
+			if (!downloaded.renameTo(file)) {
+				downloaded.delete();
+				throw new IOException("unable to move " + downloaded + " to " + file);
+			}
+		}
+		entries.put(key, Long.valueOf(length));
+		size += length;
+		evict();
+		return map(file);
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+		while (size > maxBytes && it.hasNext()) {
+			Map.Entry<String, Long> eldest = it.next();
+			new File(directory, eldest.getKey()).delete();
+			size -= eldest.getValue().longValue();
+			it.remove();
+		}
+	}
+
+	private static ByteBuffer map(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			// the mapping stays valid after the channel is closed
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * The file name for a digest.  Base64 is case-sensitive, which file names aren't everywhere, so
+	 * the MD5 of an "md5-" digest is written out in hex instead.  Any other digest keeps its lower
+	 * case letters, digits, '-' and '.', and has everything else escaped.
+	 */
+	static String fileName(String digest) {
+		if (digest.startsWith("md5-")) {
+			byte[] md5 = Base64.decodeBase64(digest.substring(4).getBytes());
+			if (md5.length == 16) {
+				return "md5-" + new String(Hex.encodeHex(md5));
+			}
+		}
+		StringBuilder sb = new StringBuilder(digest.length() + 8);
+		for (int i = 0; i < digest.length(); i++) {
+			char c = digest.charAt(i);
+			if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '.') {
+				sb.append(c);
+			} else {
+				sb.append('_').append(Integer.toHexString(c)).append('_');
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Is the content for this digest cached?
+	 * @param digest
+	 * @return
+	 */
+	public synchronized boolean contains(String digest) {
+		return entries.containsKey(fileName(digest));
+	}
+
+	/**
+	 * Drops an attachment from the cache
+	 * @param digest
+	 */
+	public synchronized void remove(String digest) {
+		String key = fileName(digest);
+		Long length = entries.remove(key);
+		if (length != null) {
+			size -= length.longValue();
+			new File(directory, key).delete();
+		}
+	}
+
+	/**
+	 * Empties the cache, deleting its files
+	 */
+	public synchronized void clear() {
+		for (String key : entries.keySet()) {
+			new File(directory, key).delete();
+		}
+		entries.clear();
+		size = 0;
+	}
+
+	/**
+	 * The directory the attachments are kept in
+	 * @return
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * The number of cached attachments
+	 * @return
+	 */
+	public synchronized int getCount() {
+		return entries.size();
+	}
+
+	/**
+	 * The total size of the cached attachments (in bytes)
+	 * @return
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * The number of reads answered from the cache
+	 * @return
+	 */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * The number of reads that had to download the attachment
+	 * @return
+	 */
+	public synchronized long getMissCount() {
+		return misses;
+	}
+}
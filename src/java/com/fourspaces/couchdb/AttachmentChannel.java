@@ -0,0 +1,198 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A read-only, seekable channel over an attachment.  The attachment is read in fixed size,
+ * aligned blocks, each fetched with an HTTP Range request the first time it is needed, and the
+ * most recently used blocks are kept in memory.  Reading the last few KB of a huge attachment
+ * only transfers the block(s) they are in.
+ * <p>
+ * The size is read when the channel is opened.  Blocks are fetched independently, so if the
+ * attachment is replaced while the channel is open, later blocks come from the new version.
+ * <p>
+ * Not thread safe.
+ * <p>
+ * Ex usage: <br>
+ * AttachmentChannel ch = db.openAttachmentChannel("movie", "movie.mp4");
+ * ch.position(ch.size() - 4096);
+ * ch.read(buffer);
+ * ch.close();
+ *
+ * @see Database#openAttachmentChannel(String, String)
+ */
+public class AttachmentChannel implements ReadableByteChannel {
+	static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+	static final int DEFAULT_CACHED_BLOCKS = 16;
+
+	private final Database database;
+	private final String id;
+	private final String name;
+	private final long size;
+	private final int blockSize;
+	private final Map<Long, ByteBuffer> blocks;
+
+	private long position = 0;
+	private long fetchCount = 0;
+	private boolean open = true;
+
+	/**
+	 * (called only from Database.openAttachmentChannel())
+	 * @param database
+	 * @param id
+	 * @param name
+	 * @param size
+	 * @param blockSize
+	 * @param cachedBlocks
+	 */
+	AttachmentChannel(Database database, String id, String name, long size, int blockSize, final int cachedBlocks) {
+		if (blockSize < 1) {
+			throw new IllegalArgumentException("blockSize must be at least 1");
+		}
+		if (cachedBlocks < 1) {
+			throw new IllegalArgumentException("cachedBlocks must be at least 1");
+		}
+		this.database = database;
+		this.id = id;
+		this.name = name;
+		this.size = size;
+		this.blockSize = blockSize;
+		this.blocks = new LinkedHashMap<Long, ByteBuffer>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<Long, ByteBuffer> eldest) {
+				return size() > cachedBlocks;
+			}
+		};
+	}
+
+	/**
+	 * Reads from the current position, fetching blocks as needed, and advances the position.
+	 * @return the number of bytes read (0 if dst has no room), or -1 at the end of the attachment
+	 */
+	public int read(ByteBuffer dst) throws IOException {
+		checkOpen();
+		if (position >= size) {
+			return -1;
+		}
+		int read = 0;
+		while (dst.hasRemaining() && position < size) {
+			ByteBuffer block = block(position / blockSize);
+			int offset = (int) (position % blockSize);
+			if (offset >= block.limit()) {
+				// the attachment got shorter since the channel was opened
+				break;
+			}
+			ByteBuffer slice = block.duplicate();
+			slice.position(offset);
+			if (slice.remaining() > dst.remaining()) {
+				slice.limit(offset + dst.remaining());
+			}
+			int n = slice.remaining();
+			dst.put(slice);
+			position += n;
+			read += n;
+		}
+		// nothing read with room left means the attachment ended early
+		return (read == 0 && dst.hasRemaining()) ? -1 : read;
+	}
+
+	private ByteBuffer block(long index) throws IOException {
+		Long key = Long.valueOf(index);
+		ByteBuffer block = blocks.get(key);
+		if (block == null) {
+			long start = index * blockSize;
+			int length = (int) Math.min(blockSize, size - start);
+			block = database.getAttachmentRange(id, name, start, length);
+			fetchCount++;
+			blocks.put(key, block);
+		}
+		return block;
+	}
+
+	/**
+	 * The position of the next byte read
+	 * @return
+	 */
+	public long position() {
+		return position;
+	}
+
+	/**
+	 * Moves to the given position.  Nothing is fetched until the next read.
+	 * @param newPosition (can be past the end, where reads return -1)
+	 * @return this channel
+	 * @throws IOException if the channel is closed
+	 */
+	public AttachmentChannel position(long newPosition) throws IOException {
+		checkOpen();
+		if (newPosition < 0) {
+			throw new IllegalArgumentException("position can't be negative");
+		}
+		this.position = newPosition;
+		return this;
+	}
+
+	/**
+	 * The size of the attachment, in bytes
+	 * @return
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * The size of the blocks the attachment is read in
+	 * @return
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * The number of blocks fetched from the server so far
+	 * @return
+	 */
+	public long getFetchCount() {
+		return fetchCount;
+	}
+
+	public boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * Drops the cached blocks
+	 */
+	public void close() {
+		open = false;
+		blocks.clear();
+	}
+
+	private void checkOpen() throws IOException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+	}
+}
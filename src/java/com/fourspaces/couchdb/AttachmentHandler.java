@@ -0,0 +1,39 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Receives the attachments of a document as they are read from the server.
+ *
+ * @see Database#getDocumentWithAttachments(String, AttachmentHandler)
+ */
+public interface AttachmentHandler {
+
+	/**
+	 * Called for each attachment, in the order of the document's _attachments.  The content is
+	 * read straight from the response, so it is only valid until this returns; whatever hasn't
+	 * been read by then is skipped.  An exception thrown from here stops the read and is rethrown.
+	 * @param name
+	 * @param contentType
+	 * @param digest the digest from the attachment's stub, or null
+	 * @param content the (decompressed) content
+	 */
+	void onAttachment(String name, String contentType, String digest, InputStream content) throws IOException;
+}
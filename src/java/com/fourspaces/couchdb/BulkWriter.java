@@ -0,0 +1,298 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A BulkWriter collects individual document saves and sends them to the database in
+ * _bulk_docs batches.  A batch is sent when it reaches a number of documents, a number of
+ * bytes, or has been waiting for a given time -- whichever comes first.
+ * <p>
+ * Each save returns a Future that is completed once its batch has been written.  On success the
+ * Future yields the Document with its new _id and _rev; if the server rejected the document (a
+ * conflict, for example) Future.get() throws an ExecutionException caused by a CouchException.
+ * <p>
+ * Batches are written in order on a background thread.  Close the writer when you are done to
+ * send anything still pending and stop the thread.
+ * <p>
+ * Ex usage: <br>
+ * BulkWriter writer = db.createBulkWriter();
+ * Future&lt;Document&gt; saved = writer.save(doc);
+ * ...
+ * writer.close();
+ *
+ * @see Database#createBulkWriter(int, long, long)
+ */
+public class BulkWriter implements Closeable {
+	Log log = LogFactory.getLog(BulkWriter.class);
+
+	/** Default number of documents per batch */
+	public static final int DEFAULT_MAX_DOCUMENTS = 500;
+	/** Default size of a batch (1 MB) */
+	public static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+	/** Default time a document may wait for its batch to fill up (in milliseconds) */
+	public static final long DEFAULT_MAX_DELAY = 100;
+
+	private final Database database;
+	private final int maxDocuments;
+	private final long maxBytes;
+	private final long maxDelay;
+	private final ScheduledExecutorService scheduler;
+
+	private List<PendingSave> pending = new ArrayList<PendingSave>();
+	private long pendingBytes = 0;
+	private ScheduledFuture<?> timer = null;
+	private boolean closed = false;
+
+	/**
+	 * C-tor only used by the Database object.
+	 * @param database
+	 * @param maxDocuments send a batch once it holds this many documents
+	 * @param maxBytes send a batch once its JSON is at least this many bytes
+	 * @param maxDelay send a batch once its first document has waited this many milliseconds
+	 */
+	BulkWriter(Database database, int maxDocuments, long maxBytes, long maxDelay) {
+		this.database = database;
+		this.maxDocuments = maxDocuments;
+		this.maxBytes = maxBytes;
+		this.maxDelay = maxDelay;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "couchdb4j-bulk-writer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Queues a document to be saved in the next batch.  The document is encoded right away, so
+	 * changes made to it after this call aren't saved.
+	 * @param doc
+	 * @return a Future for the saved document (with its _id and _rev updated)
+	 * @throws IllegalStateException if the writer has been closed
+	 */
+	public Future<Document> save(Document doc) {
+		PendingSave save = new PendingSave(doc, encode(doc));
+		synchronized (this) {
+			if (closed) {
+				throw new IllegalStateException("BulkWriter is closed");
+			}
+			// don't let this document push a non-empty batch over the size limit
+			if (!pending.isEmpty() && pendingBytes + save.json.length > maxBytes) {
+				send(takeBatch());
+			}
+			pending.add(save);
+			pendingBytes += save.json.length;
+			if (pending.size() >= maxDocuments || pendingBytes >= maxBytes) {
+				send(takeBatch());
+			} else if (timer == null) {
+				timer = scheduler.schedule(new Runnable() {
+					public void run() {
+						List<PendingSave> batch;
+						synchronized (BulkWriter.this) {
+							timer = null;
+							batch = takeBatch();
+						}
+						write(batch);
+					}
+				}, maxDelay, TimeUnit.MILLISECONDS);
+			}
+		}
+		return save;
+	}
+
+	/**
+	 * Sends any pending documents now, and waits until they (and any batches already
+	 * in flight) have been written.
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		final List<PendingSave> batch;
+		synchronized (this) {
+			batch = takeBatch();
+		}
+		Future<Object> done = scheduler.submit(new Callable<Object>() {
+			public Object call() {
+				write(batch);
+				return null;
+			}
+		});
+		try {
+			done.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while flushing bulk writes");
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Flushes any pending documents and stops the background thread.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		try {
+			flush();
+		} finally {
+			scheduler.shutdown();
+		}
+	}
+
+	/**
+	 * The number of documents waiting for the next batch
+	 * @return
+	 */
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	// must hold the lock
+	private List<PendingSave> takeBatch() {
+		List<PendingSave> batch = pending;
+		pending = new ArrayList<PendingSave>();
+		pendingBytes = 0;
+		if (timer != null) {
+			timer.cancel(false);
+			timer = null;
+		}
+		return batch;
+	}
+
+	private void send(final List<PendingSave> batch) {
+		scheduler.execute(new Runnable() {
+			public void run() {
+				write(batch);
+			}
+		});
+	}
+
+	private void write(List<PendingSave> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		Document[] docs = new Document[batch.size()];
+		List<byte[]> json = new ArrayList<byte[]>(batch.size());
+		for (int i = 0; i < docs.length; i++) {
+			docs[i] = batch.get(i).doc;
+			json.add(batch.get(i).json);
+		}
+		try {
+			CouchResponse resp = database.bulkSaveRaw(json);
+			if (resp == null || !resp.isOk()) {
+				IOException e = (resp == null) ? new IOException("no response from server")
+						: new CouchException(resp.getErrorId(), resp.getErrorReason());
+				for (PendingSave save : batch) {
+					save.failed(e);
+				}
+				return;
+			}
+			JSONArray rows = resp.getBodyAsJSONArray();
+			for (int i = 0; i < docs.length; i++) {
+				PendingSave save = batch.get(i);
+				JSONObject row = (i < rows.size()) ? rows.getJSONObject(i) : null;
+				if (row == null) {
+					save.failed(new IOException("no result returned for document"));
+				} else if (row.has("error")) {
+					save.failed(new CouchException(row.getString("error"), row.optString("reason")));
+				} else if (StringUtils.isNotBlank(docs[i].getId()) && !docs[i].getId().equals(row.getString("id"))) {
+					save.failed(new IOException("bulk save result out of order for " + docs[i].getId()));
+				} else {
+					docs[i].setId(row.getString("id"));
+					docs[i].setRev(row.getString("rev"));
+					docs[i].setDatabase(database);
+					save.saved();
+				}
+			}
+		} catch (Exception e) {
+			log.warn("Error bulk saving documents - " + e);
+			IOException ioe = (e instanceof IOException) ? (IOException) e : new IOException(e.toString());
+			for (PendingSave save : batch) {
+				if (!save.isDone()) {
+					save.failed(ioe);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The document's JSON, kept until its batch is sent so it is only encoded once
+	 */
+	private byte[] encode(Document doc) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			database.getSession().getCodec().write(doc, out);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * The Future handed back for each save; completed by the batch that writes it.
+	 */
+	private static class PendingSave extends FutureTask<Document> {
+		final Document doc;
+		final byte[] json;
+
+		PendingSave(Document doc, byte[] json) {
+			super(new Callable<Document>() {
+				public Document call() {
+					throw new IllegalStateException("completed by BulkWriter");
+				}
+			});
+			this.doc = doc;
+			this.json = json;
+		}
+
+		void saved() {
+			set(doc);
+		}
+
+		void failed(Throwable t) {
+			setException(t);
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * A request body holding the remaining bytes of a ByteBuffer (a heap, direct or mapped buffer).
+ * The buffer's position isn't changed.
+ */
+class ByteBufferEntity extends AbstractHttpEntity {
+	private final ByteBuffer buffer;
+
+	/**
+	 * @param buffer
+	 * @param contentType
+	 */
+	ByteBufferEntity(ByteBuffer buffer, String contentType) {
+		this.buffer = buffer.slice();
+		setContentType(contentType);
+	}
+
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	public boolean isStreaming() {
+		return false;
+	}
+
+	public long getContentLength() {
+		return buffer.remaining();
+	}
+
+	public InputStream getContent() throws IOException {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return new ByteArrayInputStream(bytes);
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		if (out == null) {
+			throw new IllegalArgumentException("Output stream may not be null");
+		}
+		ByteBuffer data = buffer.duplicate();
+		WritableByteChannel target = Channels.newChannel(out);
+		while (data.hasRemaining()) {
+			target.write(data);
+		}
+		out.flush();
+	}
+}
@@ -0,0 +1,107 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * A single row of the _changes feed: the id of a document that changed, its current leaf
+ * revision(s), the update sequence of the change, and (if the feed asked for include_docs) the
+ * document itself.
+ */
+public class Change {
+	private final JSONObject row;
+	private final Document document;
+
+	/**
+	 * Builds the change from a row of the feed (called only from ChangesFeed)
+	 * @param row
+	 * @param database
+	 */
+	Change(JSONObject row, Database database) {
+		this.row = row;
+		JSONObject doc = row.optJSONObject("doc");
+		if (doc != null && !doc.isNullObject()) {
+			document = new Document(doc);
+			document.setDatabase(database);
+		} else {
+			document = null;
+		}
+	}
+
+	/**
+	 * The update sequence of this change.  This is a number in CouchDB 1.x and an opaque
+	 * string in 2.x, so it is always returned as a String.
+	 * @return
+	 */
+	public String getSeq() {
+		return ChangesFeed.seqToString(row.opt("seq"));
+	}
+
+	/**
+	 * The id of the changed document
+	 * @return
+	 */
+	public String getId() {
+		return row.optString("id");
+	}
+
+	/**
+	 * The leaf revisions of the changed document
+	 * @return
+	 */
+	public String[] getRevs() {
+		JSONArray ar = row.optJSONArray("changes");
+		if (ar == null) {
+			return new String[0];
+		}
+		String[] revs = new String[ar.size()];
+		for (int i = 0; i < ar.size(); i++) {
+			revs[i] = ar.getJSONObject(i).optString("rev");
+		}
+		return revs;
+	}
+
+	/**
+	 * Was the document deleted?
+	 * @return
+	 */
+	public boolean isDeleted() {
+		return row.optBoolean("deleted");
+	}
+
+	/**
+	 * The document, if the feed was started with include_docs.
+	 * @return the document, or null
+	 */
+	public Document getDocument() {
+		return document;
+	}
+
+	/**
+	 * The raw row from the feed
+	 * @return
+	 */
+	public JSONObject getJSONObject() {
+		return row;
+	}
+
+	public String toString() {
+		return row.toString();
+	}
+}
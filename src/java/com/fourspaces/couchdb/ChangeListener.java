@@ -0,0 +1,33 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb;
+
+/**
+ * Receives the rows of a ChangesFeed as they arrive.
+ *
+ * @see ChangesFeed#start(ChangeListener)
+ */
+public interface ChangeListener {
+
+	/**
+	 * Called (on the feed's thread) for every change, in sequence order.  The feed's checkpoint
+	 * (ChangesFeed.getLastSeq()) is advanced once this returns.  Exceptions thrown from here are
+	 * logged and do not stop the feed.
+	 * @param change
+	 */
+	void onChange(Change change);
+}
@@ -0,0 +1,499 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.json.JSONObject;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+
+import com.fourspaces.couchdb.util.JSONReader;
+
+/**
+ * Follows the _changes feed of a database, handing each change to a ChangeListener as it
+ * arrives.  Both the "continuous" feed (one long lived response with a row per line) and the
+ * "longpoll" feed (a request that waits until there is at least one change) are supported.
+ * <p>
+ * The feed remembers the sequence of the last change it delivered (see getLastSeq()).  If the
+ * connection fails it waits and reconnects with since=lastSeq, so no changes are lost or repeated.
+ * Save getLastSeq() somewhere and pass it to setSince() to resume after a restart.
+ * <p>
+ * Ex usage: <br>
+ * ChangesFeed feed = db.getChangesFeed();
+ * feed.setIncludeDocs(true);
+ * feed.start(listener);
+ * ...
+ * feed.stop();
+ */
+public class ChangesFeed implements Runnable {
+	Log log = LogFactory.getLog(ChangesFeed.class);
+
+	/** One long lived response, a row per line */
+	public static final String CONTINUOUS = "continuous";
+	/** Repeated requests that each wait until there is a change */
+	public static final String LONGPOLL = "longpoll";
+
+	private static final String SELECTOR_FILTER = "_selector";
+	private static final long MAX_RETRY_DELAY = 60 * 1000;
+
+	private final Database database;
+
+	protected String feed = CONTINUOUS;
+	protected Boolean includeDocs;
+	protected String filter;
+	protected JSONObject selector;
+	protected String queryParams;
+	protected int heartbeat = 10 * 1000;
+	protected long retryDelay = 1000;
+
+	private volatile String lastSeq;
+	private volatile boolean running = false;
+	private volatile HttpRequestBase current;
+	private ChangeListener listener;
+
+	/**
+	 * C-tor only used by the Database object.
+	 * @param database
+	 */
+	ChangesFeed(Database database) {
+		this.database = database;
+	}
+
+	/**
+	 * Use the "continuous" or "longpoll" feed (continuous by default)
+	 * @param feed
+	 */
+	public void setFeed(String feed) {
+		if (!CONTINUOUS.equals(feed) && !LONGPOLL.equals(feed)) {
+			throw new IllegalArgumentException("feed must be continuous or longpoll: " + feed);
+		}
+		this.feed = feed;
+	}
+
+	/**
+	 * Start after this update sequence (ex: a checkpoint saved from getLastSeq(), or "now")
+	 * @param since
+	 */
+	public void setSince(String since) {
+		this.lastSeq = since;
+	}
+
+	/**
+	 * Include the full document in each change
+	 * @param includeDocs
+	 */
+	public void setIncludeDocs(Boolean includeDocs) {
+		this.includeDocs = includeDocs;
+	}
+
+	/**
+	 * Only return changes that pass this filter function ("designdoc/filtername")
+	 * @param filter
+	 */
+	public void setFilter(String filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * Only return changes for documents matching this Mango selector (CouchDB 2.0+).
+	 * This replaces any filter set with setFilter().
+	 * @param selector
+	 */
+	public void setSelector(JSONObject selector) {
+		this.selector = selector;
+	}
+
+	/**
+	 * Extra parameters for the filter function, as a query string (ex: "type=order")
+	 * @param queryParams
+	 */
+	public void setQueryParams(String queryParams) {
+		this.queryParams = queryParams;
+	}
+
+	/**
+	 * How often the server should send a heartbeat on an idle feed, in milliseconds.  This needs to be
+	 * less than the Session's socket timeout, otherwise a quiet feed will time out and reconnect.
+	 * @param heartbeat
+	 */
+	public void setHeartbeat(int heartbeat) {
+		this.heartbeat = heartbeat;
+	}
+
+	/**
+	 * How long to wait before reconnecting after the first failure, in milliseconds.  The wait doubles
+	 * on each consecutive failure, up to a minute.
+	 * @param retryDelay
+	 */
+	public void setRetryDelay(long retryDelay) {
+		this.retryDelay = retryDelay;
+	}
+
+	/**
+	 * The sequence of the last change delivered to the listener -- the checkpoint to resume from.
+	 * @return the sequence, or null if nothing has been delivered (and no since was set)
+	 */
+	public String getLastSeq() {
+		return lastSeq;
+	}
+
+	/**
+	 * Is the feed currently being followed?
+	 * @return
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Based upon settings, builds the queryString for the next request
+	 * @return
+	 */
+	public String getQueryString() {
+		StringBuilder qs = new StringBuilder();
+		qs.append("feed=").append(feed);
+		qs.append("&heartbeat=").append(heartbeat);
+		if (lastSeq != null) {
+			qs.append("&since=").append(encode(lastSeq));
+		}
+		if (includeDocs != null && includeDocs.booleanValue()) {
+			qs.append("&include_docs=true");
+		}
+		if (selector != null) {
+			qs.append("&filter=").append(SELECTOR_FILTER);
+		} else if (filter != null) {
+			qs.append("&filter=").append(encode(filter));
+		}
+		if (queryParams != null) {
+			qs.append("&").append(queryParams);
+		}
+		return qs.toString();
+	}
+
+	/**
+	 * Follows the feed on a thread of its own, handing changes to the listener until stop() is
+	 * called.  The feed holds on to its thread for as long as it runs, so it doesn't take one from
+	 * the Session's executor.
+	 * @param listener
+	 * @return a Future that completes when the feed stops
+	 */
+	public Future<?> start(ChangeListener listener) {
+		begin(listener);
+		FutureTask<Object> task = new FutureTask<Object>(new Runnable() {
+			public void run() {
+				follow();
+			}
+		}, null);
+		Thread thread = new Thread(task, "couchdb4j-changes-" + database.getName());
+		thread.setDaemon(true);
+		thread.start();
+		return task;
+	}
+
+	/**
+	 * Follows the feed, returning the changes through a blocking Iterator.  hasNext() waits for the
+	 * next change; it returns false once the feed has been stopped.  At most bufferSize changes are
+	 * read ahead of the caller.
+	 * @param bufferSize
+	 * @return
+	 */
+	public Iterator<Change> iterator(int bufferSize) {
+		ChangeIterator it = new ChangeIterator(bufferSize);
+		start(it);
+		return it;
+	}
+
+	/**
+	 * Stops following the feed.  The connection is closed immediately.
+	 */
+	public void stop() {
+		running = false;
+		HttpRequestBase req = current;
+		if (req != null) {
+			req.abort();
+		}
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Follows the feed on the calling thread, handing changes to the listener until stop() is
+	 * called.  Use start() to run it in the background.
+	 * @param listener
+	 */
+	public void run(ChangeListener listener) {
+		begin(listener);
+		follow();
+	}
+
+	/**
+	 * Follows the feed on the calling thread until stop() is called, handing changes to the
+	 * listener it was last started with.
+	 * @throws IllegalStateException if the feed has never been given a listener
+	 * @see #run(ChangeListener)
+	 */
+	public void run() {
+		run(listener);
+	}
+
+	private synchronized void begin(ChangeListener listener) {
+		if (listener == null) {
+			throw new IllegalStateException("no listener to hand the changes to");
+		}
+		if (running) {
+			throw new IllegalStateException("feed is already running");
+		}
+		this.listener = listener;
+		running = true;
+	}
+
+	private void follow() {
+		long delay = retryDelay;
+		try {
+			while (running) {
+				try {
+					if (poll()) {
+						delay = retryDelay;
+					} else {
+						waitToRetry(delay);
+						delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+					}
+				} catch (Exception e) {
+					if (!running) {
+						break;
+					}
+					log.warn("Error following changes feed of " + database.getName() + " (last seq " + lastSeq + ") - " + e);
+					waitToRetry(delay);
+					delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+				}
+			}
+		} finally {
+			running = false;
+			if (listener instanceof ChangeIterator) {
+				((ChangeIterator) listener).finished();
+			}
+		}
+	}
+
+	/**
+	 * One request to the feed.
+	 * @return false if the server returned an error
+	 */
+	private boolean poll() throws IOException {
+		Session session = database.getSession();
+		String url = session.buildUrl(database.getName() + "/_changes", getQueryString());
+		HttpRequestBase req;
+		if (selector != null) {
+			HttpPost post = new HttpPost(url);
+			post.setEntity(session.jsonEntity(Collections.singletonMap("selector", selector)));
+			post.setHeader("Content-Type", "application/json");
+			req = post;
+		} else {
+			req = new HttpGet(url);
+		}
+		current = req;
+		boolean completed = false;
+		try {
+			HttpResponse response = session.stream(req);
+			if (response.getStatusLine().getStatusCode() != 200) {
+				CouchResponse resp = new CouchResponse(req, response, session.getCodec());
+				completed = true;
+				log.warn("Error reading changes feed - " + resp.getErrorId() + " " + resp.getErrorReason());
+				return false;
+			}
+			HttpEntity entity = response.getEntity();
+			JSONReader reader = new JSONReader(entity.getContent());
+			if (CONTINUOUS.equals(feed)) {
+				readContinuous(reader);
+			} else {
+				readLongpoll(reader);
+			}
+			current = null;
+			entity.consumeContent();
+			completed = true;
+			return true;
+		} finally {
+			current = null;
+			if (!completed) {
+				// don't hand a half read connection back to the pool
+				req.abort();
+			}
+		}
+	}
+
+	private void readContinuous(JSONReader reader) throws IOException {
+		// heartbeats are blank lines, which the reader skips as whitespace
+		while (running && reader.peek() != -1) {
+			JSONObject row = reader.readObject();
+			if (row.has("last_seq")) {
+				// the server ended the feed (timeout); reconnect from here
+				lastSeq = seqToString(row.get("last_seq"));
+				return;
+			}
+			deliver(row);
+		}
+	}
+
+	private void readLongpoll(JSONReader reader) throws IOException {
+		reader.expect('{');
+		while (running && reader.peek() != '}') {
+			String key = reader.readString();
+			reader.expect(':');
+			if (key.equals("results")) {
+				reader.expect('[');
+				while (running && !reader.skip(']')) {
+					reader.skip(',');
+					deliver(reader.readObject());
+				}
+			} else if (key.equals("last_seq")) {
+				lastSeq = seqToString(reader.readValue());
+			} else {
+				reader.skipValue();
+			}
+			reader.skip(',');
+		}
+	}
+
+	private void deliver(JSONObject row) {
+		Change change = new Change(row, database);
+		if (listener instanceof ChangeIterator) {
+			if (!((ChangeIterator) listener).offer(change)) {
+				// stopped before the caller made room for it; resume from the change before
+				return;
+			}
+		} else {
+			try {
+				listener.onChange(change);
+			} catch (RuntimeException e) {
+				log.error("Error in change listener for " + change.getId() + " - " + e, e);
+			}
+		}
+		lastSeq = change.getSeq();
+	}
+
+	private synchronized void waitToRetry(long delay) {
+		if (running) {
+			try {
+				wait(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				running = false;
+			}
+		}
+	}
+
+	static String seqToString(Object seq) {
+		if (seq == null || (seq instanceof JSONObject && ((JSONObject) seq).isNullObject())) {
+			return null;
+		}
+		return seq.toString();
+	}
+
+	private static String encode(String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * The listener behind iterator(): a bounded queue between the feed thread and the caller.
+	 */
+	private class ChangeIterator implements ChangeListener, Iterator<Change> {
+		private final BlockingQueue<Change> queue;
+		private volatile boolean finished = false;
+		private Change next;
+
+		ChangeIterator(int bufferSize) {
+			queue = new ArrayBlockingQueue<Change>(bufferSize);
+		}
+
+		public void onChange(Change change) {
+			offer(change);
+		}
+
+		/**
+		 * Queues the change, waiting for the caller to make room.  Being interrupted stops the feed.
+		 * @param change
+		 * @return false if the feed stopped before the change could be queued
+		 */
+		boolean offer(Change change) {
+			try {
+				while (running) {
+					if (queue.offer(change, 100, TimeUnit.MILLISECONDS)) {
+						return true;
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				running = false;
+			}
+			return false;
+		}
+
+		void finished() {
+			finished = true;
+		}
+
+		public boolean hasNext() {
+			try {
+				while (next == null) {
+					next = queue.poll(100, TimeUnit.MILLISECONDS);
+					if (next == null && finished && queue.isEmpty()) {
+						return false;
+					}
+				}
+				return true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		public Change next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Change c = next;
+			next = null;
+			return c;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,509 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * A Session spread over the nodes of a CouchDB cluster.  Each request goes to the healthy node with
+ * the lowest expected wait: its moving average (EWMA) of latency times the number of requests it
+ * already has in flight, plus one.  Databases, documents and views are used exactly as with a
+ * single node Session.
+ * <p>
+ * A node that fails several requests in a row (connection errors, or 502, 503 or 504 answers) is ejected and
+ * probed in the background (GET /) until it answers again.  GET and HEAD requests that can't reach
+ * a node are retried on another one; other requests aren't, since they may have been applied.
+ * If every node is ejected, requests go to all of them anyway.
+ * <p>
+ * Cookie authentication isn't supported, since its session belongs to a single node.
+ * <p>
+ * Ex usage: <br>
+ * Session session = new ClusterSession(Arrays.asList("couch1:5984", "couch2:5984", "couch3:5984"));
+ * Database db = session.getDatabase("dbname");
+ *
+ * @see #getNodes()
+ */
+public class ClusterSession extends Session {
+	private static final int DEFAULT_PORT = 5984;
+	/** the weight of the newest latency in the moving average */
+	private static final double EWMA_WEIGHT = 0.2;
+
+	private final List<Node> nodes;
+	private final AtomicInteger nextNode = new AtomicInteger();
+	private volatile int failureThreshold = 3;
+	private final ScheduledExecutorService prober;
+	private ScheduledFuture<?> probeTask = null;
+
+	/**
+	 * @param nodes "host:port" (or just "host", for port 5984) of each node
+	 */
+	public ClusterSession(List<String> nodes) {
+		this(nodes, null, null, false, false, new ConnectionPoolConfig());
+	}
+
+	/**
+	 * @param nodes "host:port" (or just "host", for port 5984) of each node
+	 * @param user - username
+	 * @param pass - password
+	 * @param usesAuth
+	 * @param secure - use SSL connections?
+	 * @param pool - connection pool settings (the per route limit applies to each node)
+	 */
+	public ClusterSession(List<String> nodes, String user, String pass, boolean usesAuth, boolean secure, ConnectionPoolConfig pool) {
+		super(host(first(nodes)), port(first(nodes)), user, pass, usesAuth, secure, pool);
+		List<Node> list = new ArrayList<Node>();
+		for (String node : nodes) {
+			list.add(new Node(host(node), port(node), secure));
+		}
+		this.nodes = Collections.unmodifiableList(list);
+		prober = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "couchdb4j-prober");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		setProbeInterval(5000);
+	}
+
+	private static String first(List<String> nodes) {
+		if (nodes.isEmpty()) {
+			throw new IllegalArgumentException("a cluster needs at least one node");
+		}
+		return nodes.get(0);
+	}
+
+	private static String host(String node) {
+		int colon = node.lastIndexOf(':');
+		return (colon < 0) ? node : node.substring(0, colon);
+	}
+
+	private static int port(String node) {
+		int colon = node.lastIndexOf(':');
+		return (colon < 0) ? DEFAULT_PORT : Integer.parseInt(node.substring(colon + 1));
+	}
+
+	/**
+	 * Sends the request to the least loaded healthy node, retrying GETs and HEADs on another node if
+	 * it can't be reached.  The second attempt of a hedged read goes to the hedge node it was
+	 * addressed to.  A request counts as in flight on its node until its response has been read
+	 * (or the request aborted).
+	 */
+	@Override
+	protected HttpResponse send(HttpRequestBase req) throws IOException {
+		boolean retryable = (req instanceof HttpGet) || (req instanceof HttpHead);
+		Node addressed = null;
+		if (req.getParams().getBooleanParameter(HEDGE_PARAM, false)) {
+			addressed = nodeAt(req.getURI());
+			if (addressed == null) {
+				// a hedge node outside the cluster
+				return super.send(req);
+			}
+		}
+		Set<Node> tried = new HashSet<Node>();
+		while (true) {
+			Node node = (addressed != null) ? addressed : choose(tried);
+			if (addressed == null) {
+				req.setURI(node.route(req.getURI()));
+			}
+			InFlight sent = node.sending(req);
+			long start = System.currentTimeMillis();
+			try {
+				HttpResponse response = super.send(req);
+				if (isNodeFailure(response.getStatusLine().getStatusCode())) {
+					failed(node);
+				} else {
+					node.succeeded(System.currentTimeMillis() - start);
+				}
+				HttpEntity entity = response.getEntity();
+				if (entity != null) {
+					response.setEntity(new InFlightEntity(entity, sent));
+					sent = null;
+				}
+				return response;
+			} catch (IOException e) {
+				if (req.isAborted()) {
+					// cancelled by the caller, not the node's fault
+					throw e;
+				}
+				failed(node);
+				tried.add(node);
+				if (addressed != null || !retryable || tried.size() >= nodes.size()) {
+					throw e;
+				}
+				log.warn("Retrying " + req.getMethod() + " on another node, " + node + " failed: " + e);
+			} finally {
+				if (sent != null) {
+					sent.done = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The node a URI is addressed to
+	 * @return the node, or null if it isn't one of the cluster's
+	 */
+	private Node nodeAt(URI uri) {
+		for (Node node : nodes) {
+			if (node.host.equalsIgnoreCase(uri.getHost()) && node.port == uri.getPort()) {
+				return node;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Answers that say the node (or a proxy in front of it) is unavailable, rather than that
+	 * something is wrong with the request
+	 */
+	private static boolean isNodeFailure(int status) {
+		return status == 502 || status == 503 || status == 504;
+	}
+
+	/**
+	 * The healthy node with the lowest (latency * (in flight + 1)), skipping the ones already tried.
+	 * Nodes without a latency yet count as taking 1 ms, so they get tried.
+	 */
+	private Node choose(Set<Node> tried) {
+		int size = nodes.size();
+		// ties go to the nodes in turn
+		int offset = (nextNode.getAndIncrement() & Integer.MAX_VALUE) % size;
+		Node best = null;
+		double bestScore = 0;
+		for (int pass = 0; pass < 2 && best == null; pass++) {
+			// the second pass, if every node is ejected, takes them anyway
+			for (int i = 0; i < size; i++) {
+				Node node = nodes.get((offset + i) % size);
+				if (tried.contains(node) || (pass == 0 && node.ejected)) {
+					continue;
+				}
+				double latency = (node.latency == 0) ? 1 : node.latency;
+				double score = latency * (node.getInFlight() + 1);
+				if (best == null || score < bestScore) {
+					best = node;
+					bestScore = score;
+				}
+			}
+		}
+		return best;
+	}
+
+	private void failed(Node node) {
+		if (node.failed() >= failureThreshold && !node.ejected) {
+			node.ejected = true;
+			log.warn("Ejected " + node + " after " + failureThreshold + " failures");
+		}
+	}
+
+	/**
+	 * Probes the ejected nodes, putting back the ones that answer
+	 */
+	private void probe() {
+		for (Node node : nodes) {
+			if (!node.ejected) {
+				continue;
+			}
+			HttpGet get = new HttpGet(node.base);
+			try {
+				HttpResponse response = httpClient.execute(get);
+				HttpEntity entity = response.getEntity();
+				if (entity != null) {
+					entity.consumeContent();
+				}
+				if (response.getStatusLine().getStatusCode() == 200) {
+					node.reinstate();
+					log.info("Reinstated " + node);
+				}
+			} catch (IOException e) {
+				get.abort();
+				log.debug("Probe of " + node + " failed: " + e);
+			}
+		}
+	}
+
+	/**
+	 * How many requests in a row a node must fail to be ejected.  The default is 3.
+	 * @param failureThreshold
+	 */
+	public void setFailureThreshold(int failureThreshold) {
+		if (failureThreshold < 1) {
+			throw new IllegalArgumentException("failureThreshold must be at least 1");
+		}
+		this.failureThreshold = failureThreshold;
+	}
+
+	/**
+	 * How often (in milliseconds) ejected nodes are probed.  The default is 5 seconds.
+	 * @param interval
+	 */
+	public void setProbeInterval(long interval) {
+		if (interval <= 0) {
+			throw new IllegalArgumentException("interval must be positive");
+		}
+		synchronized (prober) {
+			if (probeTask != null) {
+				probeTask.cancel(false);
+			}
+			probeTask = prober.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					try {
+						probe();
+					} catch (RuntimeException e) {
+						log.warn("Error probing ejected nodes", e);
+					}
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Not supported: the cookie session would only belong to one node.
+	 * @throws UnsupportedOperationException
+	 */
+	@Override
+	public void setCookieAuth(boolean cookieAuth) {
+		if (cookieAuth) {
+			throw new UnsupportedOperationException("cookie authentication can't be used with a cluster");
+		}
+	}
+
+	/**
+	 * The nodes of the cluster, with their current state
+	 * @return
+	 */
+	public List<Node> getNodes() {
+		return nodes;
+	}
+
+	@Override
+	public synchronized void close() {
+		prober.shutdownNow();
+		super.close();
+	}
+
+	/**
+	 * A request sent to a node, until its response has been read
+	 */
+	private static class InFlight {
+		final HttpRequestBase request;
+		volatile boolean done = false;
+
+		InFlight(HttpRequestBase request) {
+			this.request = request;
+		}
+
+		boolean isDone() {
+			return done || request.isAborted();
+		}
+	}
+
+	/**
+	 * A response body that marks its request done once it has been read to the end, consumed or
+	 * closed
+	 */
+	private static class InFlightEntity extends HttpEntityWrapper {
+		private final InFlight sent;
+
+		InFlightEntity(HttpEntity entity, InFlight sent) {
+			super(entity);
+			this.sent = sent;
+		}
+
+		public InputStream getContent() throws IOException {
+			return new FilterInputStream(wrappedEntity.getContent()) {
+				public int read() throws IOException {
+					int b = super.read();
+					if (b == -1) {
+						sent.done = true;
+					}
+					return b;
+				}
+
+				public int read(byte[] b, int off, int len) throws IOException {
+					int n = super.read(b, off, len);
+					if (n == -1) {
+						sent.done = true;
+					}
+					return n;
+				}
+
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						sent.done = true;
+					}
+				}
+			};
+		}
+
+		public void writeTo(OutputStream out) throws IOException {
+			try {
+				wrappedEntity.writeTo(out);
+			} finally {
+				sent.done = true;
+			}
+		}
+
+		public void consumeContent() throws IOException {
+			try {
+				wrappedEntity.consumeContent();
+			} finally {
+				sent.done = true;
+			}
+		}
+	}
+
+	/**
+	 * A node of the cluster: its address, whether it is healthy, and the load and latency used to
+	 * route requests to it.
+	 */
+	public static class Node {
+		private final String host;
+		private final int port;
+		final String base;
+		/** the requests sent to the node whose responses haven't been read yet */
+		private final Queue<InFlight> inFlight = new ConcurrentLinkedQueue<InFlight>();
+		private final AtomicLong requests = new AtomicLong();
+		private int failures = 0;
+		/** EWMA of the latency, in milliseconds */
+		volatile double latency = 0;
+		volatile boolean ejected = false;
+
+		Node(String host, int port, boolean secure) {
+			this.host = host;
+			this.port = port;
+			this.base = ((secure) ? "https" : "http") + "://" + host + ":" + port + "/";
+		}
+
+		/**
+		 * The same URI on this node
+		 */
+		URI route(URI uri) {
+			String query = uri.getRawQuery();
+			return URI.create(base + uri.getRawPath().substring(1) + ((query == null) ? "" : "?" + query));
+		}
+
+		InFlight sending(HttpRequestBase req) {
+			InFlight sent = new InFlight(req);
+			inFlight.add(sent);
+			return sent;
+		}
+
+		synchronized void succeeded(long millis) {
+			requests.incrementAndGet();
+			failures = 0;
+			latency = (latency == 0) ? Math.max(millis, 1) : latency + EWMA_WEIGHT * (millis - latency);
+		}
+
+		/**
+		 * @return the number of failures in a row
+		 */
+		synchronized int failed() {
+			requests.incrementAndGet();
+			return ++failures;
+		}
+
+		synchronized void reinstate() {
+			failures = 0;
+			// measured afresh, as the node may have been restarted or replaced
+			latency = 0;
+			ejected = false;
+		}
+
+		public String getHost() {
+			return host;
+		}
+
+		public int getPort() {
+			return port;
+		}
+
+		/**
+		 * Is the node taking requests (not ejected)?
+		 * @return
+		 */
+		public boolean isHealthy() {
+			return !ejected;
+		}
+
+		/**
+		 * The number of requests sent to the node whose responses haven't been read yet
+		 * @return
+		 */
+		public int getInFlight() {
+			int count = 0;
+			for (Iterator<InFlight> it = inFlight.iterator(); it.hasNext();) {
+				if (it.next().isDone()) {
+					it.remove();
+				} else {
+					count++;
+				}
+			}
+			return count;
+		}
+
+		/**
+		 * The moving average of the node's latency (to the response headers), in milliseconds
+		 * @return
+		 */
+		public double getLatency() {
+			return latency;
+		}
+
+		/**
+		 * The number of requests sent to the node
+		 * @return
+		 */
+		public long getRequestCount() {
+			return requests.get();
+		}
+
+		@Override
+		public String toString() {
+			return host + ":" + port + " [" + (ejected ? "ejected" : "healthy") + ", " + getInFlight() + " in flight, "
+					+ Math.round(latency) + " ms]";
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb;
+
+/**
+ * Totals of the request and response bodies sent and received by a Session, before and after
+ * compression.  Streamed responses (ViewCursor, ChangesFeed) aren't counted.
+ *
+ * @see Session#getCompressionStats()
+ */
+public class CompressionStats {
+	private long requestBytes;
+	private long requestWireBytes;
+	private long responseBytes;
+	private long responseWireBytes;
+
+	CompressionStats() {
+	}
+
+	private CompressionStats(CompressionStats other) {
+		this.requestBytes = other.requestBytes;
+		this.requestWireBytes = other.requestWireBytes;
+		this.responseBytes = other.responseBytes;
+		this.responseWireBytes = other.responseWireBytes;
+	}
+
+	synchronized void record(CouchResponse resp) {
+		if (resp.getRequestSize() > 0) {
+			requestBytes += resp.getRequestSize();
+			requestWireBytes += resp.getRequestWireSize();
+		}
+		if (resp.getResponseSize() > 0) {
+			responseBytes += resp.getResponseSize();
+			responseWireBytes += resp.getResponseWireSize();
+		}
+	}
+
+	synchronized CompressionStats snapshot() {
+		return new CompressionStats(this);
+	}
+
+	/**
+	 * The total size of the request bodies
+	 * @return
+	 */
+	public long getRequestBytes() {
+		return requestBytes;
+	}
+
+	/**
+	 * The total size of the request bodies as sent (after compression)
+	 * @return
+	 */
+	public long getRequestWireBytes() {
+		return requestWireBytes;
+	}
+
+	/**
+	 * The total size of the response bodies
+	 * @return
+	 */
+	public long getResponseBytes() {
+		return responseBytes;
+	}
+
+	/**
+	 * The total size of the response bodies as received (before decompression)
+	 * @return
+	 */
+	public long getResponseWireBytes() {
+		return responseWireBytes;
+	}
+
+	@Override
+	public String toString() {
+		return "[requests: " + requestBytes + " bytes (" + requestWireBytes + " sent); responses: "
+				+ responseBytes + " bytes (" + responseWireBytes + " received)]";
+	}
+}
@@ -0,0 +1,122 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb;
+
+/**
+ * Settings for the HTTP connection pool of a Session.  The values are read when the Session is
+ * created; changing them afterwards has no effect on that Session.
+ * <p>
+ * Ex usage: <br>
+ * ConnectionPoolConfig pool = new ConnectionPoolConfig();
+ * pool.setMaxPerRoute(32);
+ * Session session = new Session(host, port, null, null, false, false, pool);
+ *
+ * @see Session#Session(String, int, String, String, boolean, boolean, ConnectionPoolConfig)
+ */
+public class ConnectionPoolConfig {
+	private int maxTotal = 20;
+	private int maxPerRoute = 20;
+	private long keepAlive = 60 * 1000;
+	private boolean staleCheckingEnabled = true;
+	private long maxIdleTime = 30 * 1000;
+	private long evictionInterval = 0;
+
+	/**
+	 * The maximum number of open connections.  The default is 20.
+	 * @return
+	 */
+	public int getMaxTotal() {
+		return maxTotal;
+	}
+
+	public void setMaxTotal(int maxTotal) {
+		if (maxTotal < 1) {
+			throw new IllegalArgumentException("maxTotal must be at least 1");
+		}
+		this.maxTotal = maxTotal;
+	}
+
+	/**
+	 * The maximum number of open connections to one host.  The default is 20 (HttpClient's own
+	 * default is 2, which is too few for concurrent use against a single CouchDB server).
+	 * @return
+	 */
+	public int getMaxPerRoute() {
+		return maxPerRoute;
+	}
+
+	public void setMaxPerRoute(int maxPerRoute) {
+		if (maxPerRoute < 1) {
+			throw new IllegalArgumentException("maxPerRoute must be at least 1");
+		}
+		this.maxPerRoute = maxPerRoute;
+	}
+
+	/**
+	 * How long (in milliseconds) an idle connection is kept open for reuse, unless the server
+	 * asks for less with a Keep-Alive header.  0 or less keeps it open until it is closed as idle.
+	 * The default is one minute.
+	 * @return
+	 */
+	public long getKeepAlive() {
+		return keepAlive;
+	}
+
+	public void setKeepAlive(long keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	/**
+	 * Should a pooled connection be checked before it is reused?  This catches connections the
+	 * server has already closed, at the cost of a short read on every request.  The default is true.
+	 * @return
+	 */
+	public boolean isStaleCheckingEnabled() {
+		return staleCheckingEnabled;
+	}
+
+	public void setStaleCheckingEnabled(boolean staleCheckingEnabled) {
+		this.staleCheckingEnabled = staleCheckingEnabled;
+	}
+
+	/**
+	 * Connections that have been idle for longer than this (in milliseconds) are closed by the
+	 * eviction thread, if there is one.  The default is 30 seconds.
+	 * @return
+	 */
+	public long getMaxIdleTime() {
+		return maxIdleTime;
+	}
+
+	public void setMaxIdleTime(long maxIdleTime) {
+		this.maxIdleTime = maxIdleTime;
+	}
+
+	/**
+	 * How often (in milliseconds) the eviction thread closes expired and idle connections.
+	 * 0 or less means there is no eviction thread, which is the default: stale connections are
+	 * still caught by the stale check before reuse.  Close the Session to stop the thread.
+	 * @return
+	 */
+	public long getEvictionInterval() {
+		return evictionInterval;
+	}
+
+	public void setEvictionInterval(long evictionInterval) {
+		this.evictionInterval = evictionInterval;
+	}
+}
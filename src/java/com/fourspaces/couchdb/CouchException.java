@@ -0,0 +1,64 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb;
+
+import java.io.IOException;
+
+/**
+ * An error returned by the CouchDB server, such as a "conflict" when saving a document
+ * with an out of date _rev.
+ */
+public class CouchException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	private final String errorId;
+	private final String errorReason;
+
+	/**
+	 * @param errorId the "error" field of the response (ex: "conflict")
+	 * @param errorReason the "reason" field of the response
+	 */
+	public CouchException(String errorId, String errorReason) {
+		super(errorId + ": " + errorReason);
+		this.errorId = errorId;
+		this.errorReason = errorReason;
+	}
+
+	/**
+	 * What was the error id?
+	 * @return
+	 */
+	public String getErrorId() {
+		return errorId;
+	}
+
+	/**
+	 * what was the error reason given?
+	 * @return
+	 */
+	public String getErrorReason() {
+		return errorReason;
+	}
+
+	/**
+	 * Is this a document update conflict?
+	 * @return
+	 */
+	public boolean isConflict() {
+		return "conflict".equals(errorId);
+	}
+}
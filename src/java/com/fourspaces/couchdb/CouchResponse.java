@@ -16,7 +16,9 @@
 
 package com.fourspaces.couchdb;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 
 import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
@@ -25,6 +27,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
@@ -33,6 +36,8 @@ import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.util.EntityUtils;
 
+import com.fourspaces.couchdb.util.JSONCodec;
+
 /**
  * The CouchResponse parses the HTTP response returned by the CouchDB server.
  * This is almost never called directly by the user, but indirectly through
@@ -48,7 +53,11 @@ import org.apache.http.util.EntityUtils;
 public class CouchResponse {
 	Log log = LogFactory.getLog(CouchResponse.class);
 	
-	private String body;
+	private static final String DEFAULT_CHARSET = "UTF-8";
+
+	private final JSONCodec codec;
+	private byte[] body;
+	private String charset;
 	private String path;
 	private Header[] headers;
 	private int statusCode;
@@ -57,22 +66,46 @@ public class CouchResponse {
 
 	private String error_id;
 	private String error_reason;
+
+	private long requestSize = -1;
+	private long requestWireSize = -1;
+	private long responseWireSize = -1;
 	
 	/**
 	 * C-tor parses the method results to build the CouchResponse object.
 	 * First, it reads the body (hence the IOException) from the method
 	 * Next, it checks the status codes to determine if the request was successful.
 	 * If there was an error, it parses the error codes.
-	 * @param method
+	 * <p>
+	 * The body is kept as raw bytes; it is only decoded or parsed (with the given codec) when asked for.
+	 * @param req
+	 * @param response
+	 * @param codec
 	 * @throws IOException
 	 */
-	CouchResponse(HttpRequestBase req, HttpResponse response) throws IOException {
+	CouchResponse(HttpRequestBase req, HttpResponse response, JSONCodec codec) throws IOException {
+		this.codec = codec;
 		headers = response.getAllHeaders();
 		
 		HttpEntity entity = response.getEntity();
-		body = EntityUtils.toString(entity);
+		if (entity != null) {
+			body = EntityUtils.toByteArray(entity);
+			charset = EntityUtils.getContentCharSet(entity);
+			responseWireSize = (entity instanceof GzipResponseEntity) ? ((GzipResponseEntity) entity).getWireLength() : body.length;
+		}
+		if (req instanceof HttpEntityEnclosingRequest && ((HttpEntityEnclosingRequest) req).getEntity() != null) {
+			HttpEntity sent = ((HttpEntityEnclosingRequest) req).getEntity();
+			if (sent instanceof JSONEntity) {
+				requestWireSize = ((JSONEntity) sent).getWireLength();
+				requestSize = ((JSONEntity) sent).getUncompressedLength();
+			} else {
+				requestWireSize = sent.getContentLength();
+				requestSize = requestWireSize;
+			}
+		}
 
 		path = req.getURI().getPath();
+		methodName = req.getMethod();
 
 		statusCode = response.getStatusLine().getStatusCode();
 		
@@ -90,7 +123,7 @@ public class CouchResponse {
 				(isPost && statusCode==404) ||
 				(isDelete && statusCode==404) 
 			) {
-				JSONObject jbody = JSONObject.fromObject(body);
+				JSONObject jbody = getBodyAsJSONObject();
 				error_id = jbody.getString("error");
 				error_reason = jbody.getString("reason");
 		} else if (
@@ -100,16 +133,34 @@ public class CouchResponse {
 		    (isDelete && statusCode==200)) {
 
       if (path.endsWith("_bulk_docs")) { // Handle bulk doc update differently
-        ok = JSONArray.fromObject(body).size() > 0;
+        ok = getBodyAsJSONArray().size() > 0;
       }
       else {
-        ok = JSONObject.fromObject(body).getBoolean("ok");
+        ok = getBodyAsJSONObject().getBoolean("ok");
       }
 
     } else if ( (req instanceof HttpGet) || ( (req instanceof HttpPost) && statusCode==200 ) ) {
 			ok=true;
 		}
-		log.debug(toString());
+		if (log.isDebugEnabled()) {
+			log.debug(toString());
+		}
+	}
+
+	/**
+	 * The response to a request that failed before the server answered (connection refused,
+	 * timeout...).  It has a status code of 0, isn't ok and has the exception as its error.
+	 * @param req
+	 * @param e
+	 */
+	CouchResponse(HttpRequestBase req, IOException e) {
+		this.codec = null;
+		headers = new Header[0];
+		path = req.getURI().getPath();
+		methodName = req.getMethod();
+		statusCode = 0;
+		error_id = e.getClass().getName();
+		error_reason = e.getMessage();
 	}
 
 	@Override
@@ -117,7 +168,7 @@ public class CouchResponse {
 	 * A better toString for this object... can be very verbose though.
 	 */
 	public String toString() {
-		return "["+methodName+"] "+path+" ["+statusCode+"] "+" => "+body;
+		return "["+methodName+"] "+path+" ["+statusCode+"] "+" => "+getBody();
 	}
 	
 	/**
@@ -126,7 +177,11 @@ public class CouchResponse {
 	 */
 	public JSONArray getBodyAsJSONArray() {
     if (body == null) return null;
-		return JSONArray.fromObject(body);
+		try {
+			return codec.readArray(new ByteArrayInputStream(body));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
 	}
 
 	/**
@@ -167,7 +222,11 @@ public class CouchResponse {
 		if (body==null) {
 			return null;
 		}
-		return JSONObject.fromObject(body);
+		try {
+			return codec.readObject(new ByteArrayInputStream(body));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
 	}
 
 
@@ -179,14 +238,71 @@ public class CouchResponse {
 	 */
 	public String getHeader(String key) {
 		for (Header h: headers) {
-			if (h.getName().equals(key)) {
+			if (h.getName().equalsIgnoreCase(key)) {
 				return h.getValue();
 			}
 		}
 		return null;
 	}
         
+        /**
+         * The body of the response as a String, decoded with the response's charset (UTF-8 if none was given)
+         * @return
+         */
         public String getBody() {
+            if (body == null) return null;
+            try {
+                return new String(body, (charset != null) ? charset : DEFAULT_CHARSET);
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * The raw bytes of the response body
+         * @return
+         */
+        public byte[] getBodyAsBytes() {
             return body;
         }
+
+        /**
+         * The HTTP status code of the response
+         * @return
+         */
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        /**
+         * The size of the request body (-1 if there was none, or its size isn't known)
+         * @return
+         */
+        public long getRequestSize() {
+            return requestSize;
+        }
+
+        /**
+         * The size of the request body as sent, after compression
+         * @return
+         */
+        public long getRequestWireSize() {
+            return requestWireSize;
+        }
+
+        /**
+         * The size of the response body (-1 if there was none)
+         * @return
+         */
+        public long getResponseSize() {
+            return (body == null) ? -1 : body.length;
+        }
+
+        /**
+         * The size of the response body as received, before decompression
+         * @return
+         */
+        public long getResponseWireSize() {
+            return responseWireSize;
+        }
 }
@@ -16,15 +16,51 @@
 
 package com.fourspaces.couchdb;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.GZIPInputStream;
+
+import com.fourspaces.couchdb.util.JSONReader;
 import com.fourspaces.couchdb.util.JSONUtils;
 import static com.fourspaces.couchdb.util.JSONUtils.urlEncodePath;
 import net.sf.json.*;
 
-import net.sf.json.util.JSONStringer;
+import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.InputStreamEntity;
 
 /**
  * This represents a particular database on the CouchDB server
@@ -37,14 +73,23 @@ import org.apache.commons.logging.LogFactory;
 public class Database {
   Log log = LogFactory.getLog(Database.class);
   private final String name;
-  private int documentCount;
-  private int updateSeq;
+  private final int documentCount;
+  private final int updateSeq;
+
+  private final Session session;
 
-  private Session session;
+  private volatile int bulkFetchSize = 1000;
+  private volatile DocumentCache documentCache = null;
+  private volatile AttachmentCache attachmentCache = null;
+  private volatile SingleFlight<String, CouchResponse> readFlight = null;
 
   private static final String VIEW = "/_view/";
   private static final String DESIGN = "_design/";
   private static final String UPDATE = "/_update/";
+  private static final int COPY_BUFFER_SIZE = 8192;
+  private static final byte[] BULK_DOCS_START = bytes("{\"docs\":[");
+  private static final byte[] BULK_DOCS_SEPARATOR = bytes(",");
+  private static final byte[] BULK_DOCS_END = bytes("]}");
 
 
   /**
@@ -70,6 +115,15 @@ public class Database {
     return name;
   }
 
+  /**
+   * The Session this database belongs to
+   *
+   * @return
+   */
+  Session getSession() {
+    return session;
+  }
+
   /**
    * The number of documents in the database <b>at the time that it was retrieved from the session</b>
    * This number probably isn't accurate after the initial load... so if you want an accurate
@@ -128,11 +182,23 @@ public class Database {
    * Runs "_all_docs_by_update_seq?startkey=revision" view on this database
    *
    * @return ViewResults - the results of the view... this can be iterated over to get each document.
+   * @deprecated _all_docs_by_seq was removed from CouchDB; use getChangesFeed() instead
    */
+  @Deprecated
   public ViewResults getAllDocuments(int revision) {
     return view(new View("_all_docs_by_seq?startkey=" + revision), false);
   }
 
+  /**
+   * Creates a ChangesFeed for following the "_changes" feed of this database.  Set the options on
+   * the feed (since, include_docs, filter...) and then start() it.
+   *
+   * @return
+   */
+  public ChangesFeed getChangesFeed() {
+    return new ChangesFeed(this);
+  }
+
   /**
    * Runs a named view on the database
    * This will run a view and apply any filtering that is requested (reverse, startkey, etc).
@@ -153,16 +219,17 @@ public class Database {
    * @return
    */
   private ViewResults view(final View view, final boolean isPermanentView) {
-    String url = null;
-    if (isPermanentView) {
-      String[] elements = view.getFullName().split("/");
-      url = this.name + "/" + ((elements.length < 2) ? elements[0] : DESIGN + elements[0] + VIEW + elements[1]);
+    if (view.getKeys() != null) {
+      return viewKeys(view, isPermanentView);
     }
-    else {
-      url = this.name + "/" + view.getFullName();
+    CouchResponse resp;
+    try {
+      resp = get(viewUrl(view, isPermanentView), view.getQueryString());
+    }
+    catch (IOException e) {
+      log.warn("Error running view - " + e.getMessage());
+      return null;
     }
-
-    CouchResponse resp = session.get(url, view.getQueryString());
     if (resp.isOk()) {
       ViewResults results = new ViewResults(view, resp.getBodyAsJSONObject());
       results.setDatabase(this);
@@ -172,6 +239,307 @@ public class Database {
 
   }
 
+  /**
+   * Runs a view for the keys set with View.setKeys(), POSTing the keys in the body.  Lists with
+   * more than bulkFetchSize keys are split into chunks that are run in parallel on the Session's
+   * executor (or the calling thread, if no executor thread is free for them); the rows are put
+   * back together in the order of the keys.  Views with a limit, skip,
+   * descending or group are sent in one request, since those apply to the rows of all the keys.
+   *
+   * @param view
+   * @param isPermanentView
+   * @return the results, or null if the view failed
+   */
+  private ViewResults viewKeys(final View view, final boolean isPermanentView) {
+    final String url = viewUrl(view, isPermanentView);
+    final String queryString = view.getQueryString();
+    List<Object> keys = new ArrayList<Object>(view.getKeys());
+    int chunkSize = bulkFetchSize;
+    try {
+      JSONObject json;
+      if (keys.size() <= chunkSize || !canChunk(view)) {
+        json = viewKeys(url, queryString, keys);
+      }
+      else {
+        List<FutureTask<JSONObject>> chunks = new ArrayList<FutureTask<JSONObject>>();
+        for (int start = chunkSize; start < keys.size(); start += chunkSize) {
+          final List<Object> chunk = keys.subList(start, Math.min(start + chunkSize, keys.size()));
+          chunks.add(session.fork(new Callable<JSONObject>() {
+            public JSONObject call() throws IOException {
+              return viewKeys(url, queryString, chunk);
+            }
+          }));
+        }
+        // the first chunk is run on this thread
+        json = viewKeys(url, queryString, keys.subList(0, chunkSize));
+        JSONArray rows = json.getJSONArray("rows");
+        for (FutureTask<JSONObject> chunk : chunks) {
+          rows.addAll(join(chunk).getJSONArray("rows"));
+        }
+        json.put("rows", rows);
+      }
+      ViewResults results = new ViewResults(view, json);
+      results.setDatabase(this);
+      return results;
+    }
+    catch (IOException e) {
+      log.warn("Error executing view - " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Can the rows for the view's keys be fetched in chunks and simply appended together?
+   */
+  private static boolean canChunk(View view) {
+    return view.limit == null && view.skip == null
+        && !Boolean.TRUE.equals(view.reverse) && !Boolean.TRUE.equals(view.group);
+  }
+
+  private JSONObject viewKeys(String url, String queryString, List<Object> keys) throws IOException {
+    CouchResponse resp = session.postJSON(url, Collections.singletonMap("keys", keys), queryString);
+    if (!resp.isOk()) {
+      throw new CouchException(resp.getErrorId(), resp.getErrorReason());
+    }
+    return resp.getBodyAsJSONObject();
+  }
+
+  /**
+   * Builds the url for a view, appending "_view" to the request if isPermanentView is true.
+   *
+   * @param view
+   * @param isPermanentView
+   * @return
+   */
+  private String viewUrl(final View view, final boolean isPermanentView) {
+    if (isPermanentView) {
+      String[] elements = view.getFullName().split("/");
+      return this.name + "/" + ((elements.length < 2) ? elements[0] : DESIGN + elements[0] + VIEW + elements[1]);
+    }
+    else {
+      return this.name + "/" + view.getFullName();
+    }
+  }
+
+  /**
+   * Runs a named view and returns a cursor that parses the rows as they are read from the server,
+   * rather than loading the whole response into memory.  The cursor must be closed if it isn't
+   * read to the end.
+   *
+   * @param view
+   * @return the cursor, or null if the view failed
+   */
+  public ViewCursor streamView(View view) throws IOException {
+    return streamView(view, true);
+  }
+
+  /**
+   * Streams the standard "_all_docs" view on this database
+   *
+   * @return ViewCursor - the rows of the view, read as they arrive
+   * @see streamView(View)
+   */
+  public ViewCursor streamAllDocuments() throws IOException {
+    return streamView(new View("_all_docs"), false);
+  }
+
+  /**
+   * Runs a named view and returns the response body as it is read from the server, without
+   * parsing it (for passing view results on to somewhere else as JSON).  The stream must be
+   * closed; closing it before the end aborts the request.
+   *
+   * @param view
+   * @return the JSON of the view results, or null if the view failed
+   */
+  public InputStream getViewStream(View view) throws IOException {
+    return openStream(viewRequest(view, true), "Error executing view - ");
+  }
+
+  private HttpRequestBase viewRequest(View view, boolean isPermanentView) {
+    if (view.getKeys() != null) {
+      return session.jsonPost(viewUrl(view, isPermanentView), Collections.singletonMap("keys", view.getKeys()), view.getQueryString());
+    }
+    return new HttpGet(session.buildUrl(viewUrl(view, isPermanentView), view.getQueryString()));
+  }
+
+  /**
+   * Runs a named view and copies the response body to the given stream as it is read from the
+   * server, through a fixed size buffer.  The JSON is never parsed or held in memory as a whole.
+   * The stream isn't closed.
+   *
+   * @param view
+   * @param out
+   * @return the number of bytes written
+   * @throws CouchException if the view failed (nothing has been written then)
+   */
+  public long viewTo(View view, OutputStream out) throws IOException {
+    return copy(openStream(viewRequest(view, true)), out);
+  }
+
+  /**
+   * Copies the standard "_all_docs" view on this database to the given stream
+   *
+   * @param out
+   * @return the number of bytes written
+   * @see viewTo(View, OutputStream)
+   */
+  public long allDocumentsTo(OutputStream out) throws IOException {
+    return copy(openStream(viewRequest(new View("_all_docs"), false)), out);
+  }
+
+  private static long copy(InputStream in, OutputStream out) throws IOException {
+    long total = 0;
+    try {
+      byte[] buf = new byte[COPY_BUFFER_SIZE];
+      int n;
+      while ((n = in.read(buf)) != -1) {
+        out.write(buf, 0, n);
+        total += n;
+      }
+    }
+    finally {
+      // aborts the request if the copy failed part way
+      in.close();
+    }
+    return total;
+  }
+
+  /**
+   * Sends a request and returns the body of a 200 response unread
+   *
+   * @param req
+   * @param error the start of the message logged if the request fails
+   * @return the body, or null if the request failed
+   */
+  private InputStream openStream(HttpRequestBase req, String error) throws IOException {
+    try {
+      return openStream(req);
+    }
+    catch (CouchException e) {
+      log.warn(error + e.getErrorId() + " " + e.getErrorReason());
+      return null;
+    }
+  }
+
+  /**
+   * Sends a request and returns the body of a 200 response unread
+   *
+   * @param req
+   * @return the body
+   * @throws CouchException if the server answered with anything other than 200
+   */
+  private InputStream openStream(HttpRequestBase req) throws IOException {
+    return responseStream(req, openResponse(req));
+  }
+
+  /**
+   * Sends a request and returns the response if it is a 200, with the body unread
+   *
+   * @param req
+   * @return
+   * @throws CouchException if the server answered with anything other than 200
+   */
+  private HttpResponse openResponse(HttpRequestBase req) throws IOException {
+    HttpResponse response = session.stream(req);
+    if (response.getStatusLine().getStatusCode() != 200) {
+      throw couchError(new CouchResponse(req, response, session.getCodec()));
+    }
+    return response;
+  }
+
+  private static InputStream responseStream(HttpRequestBase req, HttpResponse response) throws IOException {
+    try {
+      return new ResponseInputStream(req, response.getEntity().getContent());
+    }
+    catch (IOException e) {
+      req.abort();
+      throw e;
+    }
+  }
+
+  /**
+   * The error from a failed request (falling back to the HTTP status if there is no CouchDB error)
+   *
+   * @param resp
+   * @return
+   */
+  private static CouchException couchError(CouchResponse resp) {
+    if (resp.getErrorId() != null) {
+      return new CouchException(resp.getErrorId(), resp.getErrorReason());
+    }
+    return new CouchException(String.valueOf(resp.getStatusCode()), resp.getBody());
+  }
+
+  private ViewCursor streamView(final View view, final boolean isPermanentView) throws IOException {
+    HttpRequestBase req = viewRequest(view, isPermanentView);
+    HttpResponse response = session.stream(req);
+    if (response.getStatusLine().getStatusCode() != 200) {
+      CouchResponse resp = new CouchResponse(req, response, session.getCodec());
+      log.warn("Error executing view - " + resp.getErrorId() + " " + resp.getErrorReason());
+      return null;
+    }
+    try {
+      return new ViewCursor(view, this, req, response);
+    }
+    catch (IOException e) {
+      req.abort();
+      throw e;
+    }
+    catch (RuntimeException e) {
+      req.abort();
+      throw e;
+    }
+  }
+
+  /**
+   * Pages through a named view, pageSize rows per request.  Each page starts at the key and
+   * document id where the previous one stopped (rather than skipping over the rows already read),
+   * and the next page is fetched in the background while the current one is being read.
+   *
+   * @param view
+   * @param pageSize
+   * @return
+   */
+  public ViewPager pageView(View view, int pageSize) {
+    return new ViewPager(this, view, pageSize);
+  }
+
+  /**
+   * Pages through the standard "_all_docs" view on this database
+   *
+   * @param pageSize
+   * @return
+   * @see pageView(View, int)
+   */
+  public ViewPager pageAllDocuments(int pageSize) {
+    return pageView(new View("_all_docs"), pageSize);
+  }
+
+  /**
+   * Creates a ViewScan, which reads a whole view by splitting it into key ranges that are
+   * read concurrently.
+   *
+   * @param view
+   * @return
+   */
+  public ViewScan createViewScan(View view) {
+    return new ViewScan(this, view);
+  }
+
+  /**
+   * Runs a named view without blocking the caller.  The request is executed on the Session's executor.
+   *
+   * @param view
+   * @return a Future for the results (the value is null if the view failed)
+   */
+  public Future<ViewResults> viewAsync(final View view) {
+    return session.submit(new Callable<ViewResults>() {
+      public ViewResults call() {
+        return view(view);
+      }
+    });
+  }
+
   /**
    * Runs a named view <i>Not currently working in CouchDB code</i>
    *
@@ -203,15 +571,15 @@ public class Database {
   public ViewResults adhoc(final AdHocView view) {
 
 
-    String adHocBody = new JSONStringer()
-        .object()
-          .key("map").value(JSONUtils.stringSerializedFunction(view.getFunction()))
-        .endObject()
-        .toString();
-    
+    Map<String, Object> adHocBody = new HashMap<String, Object>();
+    adHocBody.put("map", JSONUtils.stringSerializedFunction(view.getFunction()));
+    if (view.getKeys() != null) {
+      adHocBody.put("keys", view.getKeys());
+    }
+
     // Bugfix - include query string for adhoc views to support
     // additional view options (setLimit, etc)
-    CouchResponse resp = session.post(name + "/_temp_view", adHocBody, view.getQueryString());
+    CouchResponse resp = session.postJSON(name + "/_temp_view", adHocBody, view.getQueryString());
     if (resp.isOk()) {
       ViewResults results = new ViewResults(view, resp.getBodyAsJSONObject());
       results.setDatabase(this);
@@ -239,23 +607,25 @@ public class Database {
   public void saveDocument(Document doc, String docId) throws IOException {
     CouchResponse resp;
     if (docId == null || docId.equals("")) {
-      resp = session.post(name, doc.getJSONObject().toString());
+      resp = session.postJSON(name, doc, null);
     }
     else {
-      resp = session.put(name + "/" + urlEncodePath(docId), doc.getJSONObject().toString());
+      resp = session.putJSON(name + "/" + urlEncodePath(docId), doc);
     }
 
     if (resp.isOk()) {
       try {
+        JSONObject body = resp.getBodyAsJSONObject();
         if (doc.getId() == null || doc.getId().equals("")) {
-          doc.setId(resp.getBodyAsJSONObject().getString("id"));
+          doc.setId(body.getString("id"));
         }
-        doc.setRev(resp.getBodyAsJSONObject().getString("rev"));
+        doc.setRev(body.getString("rev"));
       }
       catch (JSONException e) {
         e.printStackTrace();
       }
       doc.setDatabase(this);
+      cacheSavedDocument(doc);
     }
     else {
       log.warn("Error adding document - " + resp.getErrorId() + " " + resp.getErrorReason());
@@ -272,10 +642,24 @@ public class Database {
     saveDocument(doc, doc.getId());
   }
 
-  public void bulkSaveDocuments(Document[] documents) throws IOException {
-    CouchResponse resp = null;
+  /**
+   * Saves a document without blocking the caller.  The returned Future yields the same Document
+   * once its _id and _rev have been updated.
+   *
+   * @param doc
+   * @return
+   */
+  public Future<Document> saveDocumentAsync(final Document doc) {
+    return session.submit(new Callable<Document>() {
+      public Document call() throws IOException {
+        saveDocument(doc);
+        return doc;
+      }
+    });
+  }
 
-    resp = session.post(name + "/_bulk_docs", new JSONObject().accumulate("docs", documents).toString());
+  public void bulkSaveDocuments(Document[] documents) throws IOException {
+    CouchResponse resp = bulkSave(documents);
 
     if (resp.isOk()) {
       // TODO set Ids and revs and name (db)
@@ -286,6 +670,10 @@ public class Database {
       for (int i = 0; i < documents.length; i++) {
         respObj = respJsonArray.getJSONObject(i);
         id = respObj.getString("id");
+        if (respObj.has("error")) {
+          log.warn("Error bulk saving document " + id + " - " + respObj.getString("error") + " " + respObj.optString("reason"));
+          continue;
+        }
         rev = respObj.getString("rev");
         if (StringUtils.isBlank(documents[i].getId())) {
           documents[i].setId(id);
@@ -306,104 +694,669 @@ public class Database {
   }
 
   /**
-   * Retrieves a document from the CouchDB database
+   * Sends the documents to _bulk_docs.  The body of the response has one result per document, in order.
    *
-   * @param id
+   * @param documents
    * @return
    */
-  public Document getDocument(String id) throws IOException {
-    return getDocument(id, null, false);
+  CouchResponse bulkSave(Document[] documents) {
+    CouchResponse resp = session.postJSON(name + "/_bulk_docs", Collections.singletonMap("docs", documents), null);
+    DocumentCache cache = documentCache;
+    if (cache != null) {
+      for (Document d : documents) {
+        if (StringUtils.isNotBlank(d.getId())) {
+          cache.remove(d.getId());
+        }
+      }
+    }
+    return resp;
   }
 
   /**
-   * Retrieves a document from the database and asks for a list of it's revisions.
-   * The list of revision keys can be retrieved from Document.getRevisions();
+   * Saves a document from its JSON, without parsing it into a Document.  Only the top level
+   * _id is read from the JSON: with an _id it is PUT there, otherwise it is POSTed and the
+   * server assigns one.  An existing document must have its current _rev in the JSON.
    *
-   * @param id
-   * @return
+   * @param json the UTF-8 encoded document
+   * @return a Document holding just the _id and new _rev of the saved document
+   * @throws CouchException if the server refused the document (a conflict, for example)
    */
-  public Document getDocumentWithRevisions(String id) throws IOException {
-    return getDocument(id, null, true);
+  public Document saveRawDocument(byte[] json) throws IOException {
+    String id = scanIdAndRev(json)[0];
+    JSONEntity.Raw body = new JSONEntity.Raw(json);
+    CouchResponse resp;
+    if (id == null || id.equals("")) {
+      resp = session.postJSON(name, body, null);
+    }
+    else {
+      resp = session.putJSON(name + "/" + urlEncodePath(id), body);
+    }
+    if (id != null && documentCache != null) {
+      documentCache.remove(id);
+    }
+    if (!resp.isOk()) {
+      throw new CouchException(resp.getErrorId(), resp.getErrorReason());
+    }
+    JSONObject result = resp.getBodyAsJSONObject();
+    return savedStub(result.getString("id"), result.getString("rev"));
   }
 
   /**
-   * Retrieves a specific document revision
+   * Saves documents from their JSON through _bulk_docs, without parsing them into Documents.
+   * The documents are written to the request one after the other as they are.
    *
-   * @param id
-   * @param revision
-   * @return
+   * @param documents the UTF-8 encoded documents
+   * @return one Document per saved document, in order, holding its _id and new _rev -- or, if
+   *         that document failed, its _id and the "error" and "reason" from the server
    */
-  public Document getDocument(String id, String revision) throws IOException {
-    return getDocument(id, revision, false);
+  public List<Document> bulkSaveRawDocuments(List<byte[]> documents) throws IOException {
+    if (documents.isEmpty()) {
+      return new ArrayList<Document>();
+    }
+    CouchResponse resp = bulkSaveRaw(documents);
+    if (!resp.isOk()) {
+      throw new CouchException(resp.getErrorId(), resp.getErrorReason());
+    }
+    JSONArray results = resp.getBodyAsJSONArray();
+    List<Document> saved = new ArrayList<Document>(results.size());
+    for (int i = 0; i < results.size(); i++) {
+      JSONObject result = results.getJSONObject(i);
+      if (result.has("error")) {
+        log.warn("Error bulk saving document " + result.optString("id") + " - " + result.getString("error") + " " + result.optString("reason"));
+        Document failed = new Document();
+        failed.setId(result.optString("id"));
+        failed.put("error", result.getString("error"));
+        failed.put("reason", result.optString("reason"));
+        saved.add(failed);
+      }
+      else {
+        saved.add(savedStub(result.getString("id"), result.getString("rev")));
+      }
+    }
+    return saved;
   }
 
   /**
-   * Retrieves a specific document revision and (optionally) asks for a list of all revisions
-   *
-   * @param id
-   * @param revision
-   * @param showRevisions
-   * @return the document
+   * POSTs already encoded documents to _bulk_docs, one after the other as they are
+   * @param documents the UTF-8 encoded documents
+   * @return the server's response, with one result row per document
    */
-  public Document getDocument(String id, String revision, boolean showRevisions) throws IOException {
-    CouchResponse resp;
-    Document doc = null;
-    if (revision != null && showRevisions) {
-      resp = session.get(name + "/" + urlEncodePath(id), "rev=" + revision + "&full=true");
-    }
-    else if (revision != null && !showRevisions) {
-      resp = session.get(name + "/" + urlEncodePath(id), "rev=" + revision);
-    }
-    else if (revision == null && showRevisions) {
-      resp = session.get(name + "/" + urlEncodePath(id), "revs=true");
+  CouchResponse bulkSaveRaw(List<byte[]> documents) throws IOException {
+    // {"docs":[doc,doc,...]}
+    List<byte[]> parts = new ArrayList<byte[]>(documents.size() * 2 + 1);
+    parts.add(BULK_DOCS_START);
+    for (byte[] doc : documents) {
+      if (parts.size() > 1) {
+        parts.add(BULK_DOCS_SEPARATOR);
+      }
+      parts.add(doc);
     }
-    else {
-      resp = session.get(name + "/" + urlEncodePath(id));
+    parts.add(BULK_DOCS_END);
+    CouchResponse resp = session.postJSON(name + "/_bulk_docs", new JSONEntity.Raw(parts.toArray(new byte[parts.size()][])), null);
+    DocumentCache cache = documentCache;
+    if (cache != null) {
+      for (byte[] doc : documents) {
+        String id = scanIdAndRev(doc)[0];
+        if (id != null) {
+          cache.remove(id);
+        }
+      }
     }
-    if (resp.isOk()) {
-      doc = new Document(resp.getBodyAsJSONObject());
-      doc.setDatabase(this);
+    return resp;
+  }
+
+  private static byte[] bytes(String ascii) {
+    try {
+      return ascii.getBytes("US-ASCII");
     }
-    else {
-      log.warn("Error getting document - " + resp.getErrorId() + " " + resp.getErrorReason());
+    catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
     }
+  }
+
+  private Document savedStub(String id, String rev) {
+    Document doc = new Document();
+    doc.setId(id);
+    doc.setRev(rev);
+    doc.setDatabase(this);
     return doc;
   }
 
   /**
-   * Deletes a document
+   * Reads the top level _id and _rev of a document's JSON, skipping over everything else
+   * without building it.
    *
-   * @param d
-   * @return was the delete successful?
-   * @throws IllegalArgumentException for blank document id
+   * @param json
+   * @return {_id, _rev}, either of which is null if the document doesn't have it
    */
-  public boolean deleteDocument(Document d) throws IOException {
-
-    if (StringUtils.isBlank(d.getId())) {
-      throw new IllegalArgumentException("cannot delete document, doc id is empty");
+  static String[] scanIdAndRev(byte[] json) throws IOException {
+    String[] idAndRev = new String[2];
+    JSONReader reader = new JSONReader(new ByteArrayInputStream(json));
+    reader.expect('{');
+    if (reader.skip('}')) {
+      return idAndRev;
     }
+    do {
+      String key = reader.readString();
+      reader.expect(':');
+      int field = key.equals("_id") ? 0 : key.equals("_rev") ? 1 : -1;
+      if (field >= 0 && reader.peek() == '"') {
+        idAndRev[field] = reader.readString();
+        if (idAndRev[0] != null && idAndRev[1] != null) {
+          break;
+        }
+      }
+      else {
+        reader.skipValue();
+      }
+    } while (reader.skip(','));
+    return idAndRev;
+  }
 
-    CouchResponse resp = session.delete(name + "/" + urlEncodePath(d.getId()) + "?rev=" + d.getRev());
-
-    if (resp.isOk()) {
-      return true;
-    }
-    else {
-      log.warn("Error deleting document - "+resp.getErrorId()+" "+resp.getErrorReason());
-			return false;
-		}
-		
-	}
-	
   /**
-   * Gets attachment
+   * Creates a BulkWriter with the default batch limits
+   * (500 documents, 1 MB or 100 ms -- whichever comes first)
    *
-   * @param id
-   * @param attachment attachment body
-   * @return attachment body
+   * @return
    */
-    public String getAttachment(String id, String attachment) throws IOException {
-        CouchResponse resp = session.get(name + "/" + urlEncodePath(id) + "/" + attachment);
+  public BulkWriter createBulkWriter() {
+    return createBulkWriter(BulkWriter.DEFAULT_MAX_DOCUMENTS, BulkWriter.DEFAULT_MAX_BYTES, BulkWriter.DEFAULT_MAX_DELAY);
+  }
+
+  /**
+   * Creates a BulkWriter, which groups individual document saves into _bulk_docs requests.
+   *
+   * @param maxDocuments send a batch once it holds this many documents
+   * @param maxBytes send a batch once its JSON is at least this many bytes
+   * @param maxDelay send a batch once its first document has waited this many milliseconds
+   * @return
+   */
+  public BulkWriter createBulkWriter(int maxDocuments, long maxBytes, long maxDelay) {
+    return new BulkWriter(this, maxDocuments, maxBytes, maxDelay);
+  }
+
+  /**
+   * Retrieves a document from the CouchDB database
+   *
+   * @param id
+   * @return
+   */
+  public Document getDocument(String id) throws IOException {
+    return getDocument(id, null, false);
+  }
+
+  /**
+   * Retrieves a document without blocking the caller.
+   *
+   * @param id
+   * @return a Future for the document (the value is null if it doesn't exist)
+   */
+  public Future<Document> getDocumentAsync(String id) {
+    return getDocumentAsync(id, null);
+  }
+
+  /**
+   * Retrieves a specific document revision without blocking the caller.
+   *
+   * @param id
+   * @param revision
+   * @return a Future for the document (the value is null if it doesn't exist)
+   */
+  public Future<Document> getDocumentAsync(final String id, final String revision) {
+    return session.submit(new Callable<Document>() {
+      public Document call() throws IOException {
+        return getDocument(id, revision, false);
+      }
+    });
+  }
+
+  /**
+   * Retrieves a number of documents in a single request (per chunk of ids), using
+   * "_all_docs?include_docs=true" with the ids as keys.
+   * <p>
+   * The list is in the same order as the ids.  Documents that don't exist (or have been deleted)
+   * are null in the list.
+   *
+   * @param ids
+   * @return the documents
+   * @see setBulkFetchSize(int)
+   */
+  public List<Document> getDocuments(Collection<String> ids) throws IOException {
+    return getDocuments(ids, null);
+  }
+
+  /**
+   * Retrieves a number of documents in a single request (per chunk of ids).  Lists with more than
+   * bulkFetchSize ids are split into chunks that are fetched in parallel on the Session's executor
+   * (the chunks no executor thread is free for are fetched on the calling thread).
+   *
+   * @param ids
+   * @param missing if not null, the ids of documents that don't exist (or have been deleted) are added to this
+   * @return the documents, in the same order as the ids (null for missing documents)
+   */
+  public List<Document> getDocuments(Collection<String> ids, Collection<String> missing) throws IOException {
+    List<String> idList = new ArrayList<String>(ids);
+    List<Document> docs = new ArrayList<Document>(idList.size());
+    if (idList.size() <= bulkFetchSize) {
+      fetchDocuments(idList, docs);
+    }
+    else {
+      List<FutureTask<List<Document>>> chunks = new ArrayList<FutureTask<List<Document>>>();
+      for (int start = bulkFetchSize; start < idList.size(); start += bulkFetchSize) {
+        final List<String> chunk = idList.subList(start, Math.min(start + bulkFetchSize, idList.size()));
+        chunks.add(session.fork(new Callable<List<Document>>() {
+          public List<Document> call() throws IOException {
+            List<Document> result = new ArrayList<Document>(chunk.size());
+            fetchDocuments(chunk, result);
+            return result;
+          }
+        }));
+      }
+      // the first chunk is fetched on this thread
+      fetchDocuments(idList.subList(0, bulkFetchSize), docs);
+      for (FutureTask<List<Document>> chunk : chunks) {
+        docs.addAll(join(chunk));
+      }
+    }
+    if (missing != null) {
+      for (int i = 0; i < docs.size(); i++) {
+        if (docs.get(i) == null) {
+          missing.add(idList.get(i));
+        }
+      }
+    }
+    return docs;
+  }
+
+  /**
+   * Fetches one chunk of documents with _all_docs, adding them (or null) to docs in the order of the ids
+   */
+  private void fetchDocuments(List<String> ids, List<Document> docs) throws IOException {
+    CouchResponse resp = session.postJSON(name + "/_all_docs", Collections.singletonMap("keys", ids), "include_docs=true");
+    if (!resp.isOk()) {
+      throw new CouchException(resp.getErrorId(), resp.getErrorReason());
+    }
+    JSONArray rows = resp.getBodyAsJSONObject().getJSONArray("rows");
+    for (int i = 0; i < ids.size(); i++) {
+      JSONObject row = (i < rows.size()) ? rows.getJSONObject(i) : null;
+      JSONObject json = (row != null) ? row.optJSONObject("doc") : null;
+      if (json == null || json.isNullObject() || row.has("error")) {
+        docs.add(null);
+      }
+      else {
+        Document doc = new Document(json);
+        doc.setDatabase(this);
+        docs.add(doc);
+      }
+    }
+  }
+
+  /**
+   * Waits for a task from Session.fork(), running it on this thread if it hasn't been started yet
+   */
+  static <T> T join(FutureTask<T> task) throws IOException {
+    // does nothing if the task has been started already
+    task.run();
+    return waitFor(task);
+  }
+
+  /**
+   * Waits for a task run on the Session's executor, unwrapping any IOException it threw
+   */
+  static <T> T waitFor(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted");
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /**
+   * The maximum number of ids sent in one request by getDocuments() (and of keys sent for a view
+   * with View.setKeys(), unless it has a limit, skip, descending or group).  Larger lists are split
+   * into chunks of this size, which are fetched in parallel.  The default is 1000.
+   *
+   * @param bulkFetchSize
+   */
+  public void setBulkFetchSize(int bulkFetchSize) {
+    if (bulkFetchSize < 1) {
+      throw new IllegalArgumentException("bulkFetchSize must be at least 1");
+    }
+    this.bulkFetchSize = bulkFetchSize;
+  }
+
+  /**
+   * Retrieves a document from the database and asks for a list of it's revisions.
+   * The list of revision keys can be retrieved from Document.getRevisions();
+   *
+   * @param id
+   * @return
+   */
+  public Document getDocumentWithRevisions(String id) throws IOException {
+    return getDocument(id, null, true);
+  }
+
+  /**
+   * Retrieves a specific document revision
+   *
+   * @param id
+   * @param revision
+   * @return
+   */
+  public Document getDocument(String id, String revision) throws IOException {
+    return getDocument(id, revision, false);
+  }
+
+  /**
+   * Retrieves a specific document revision and (optionally) asks for a list of all revisions
+   *
+   * @param id
+   * @param revision
+   * @param showRevisions
+   * @return the document
+   */
+  public Document getDocument(String id, String revision, boolean showRevisions) throws IOException {
+    CouchResponse resp;
+    Document doc = null;
+    DocumentCache cache = documentCache;
+    if (revision != null && showRevisions) {
+      resp = get(name + "/" + urlEncodePath(id), "rev=" + revision + "&full=true");
+    }
+    else if (revision != null && !showRevisions) {
+      resp = get(name + "/" + urlEncodePath(id), "rev=" + revision);
+    }
+    else if (revision == null && showRevisions) {
+      resp = get(name + "/" + urlEncodePath(id), "revs=true");
+    }
+    else if (cache != null) {
+      return getCachedDocument(cache, id);
+    }
+    else {
+      resp = get(name + "/" + urlEncodePath(id), null);
+    }
+    if (resp.isOk()) {
+      doc = new Document(resp.getBodyAsJSONObject());
+      doc.setDatabase(this);
+    }
+    else {
+      log.warn("Error getting document - " + resp.getErrorId() + " " + resp.getErrorReason());
+    }
+    return doc;
+  }
+
+  /**
+   * Retrieves the current revision of a document as its raw JSON, without parsing it.  Goes
+   * through the document cache if there is one.
+   *
+   * @param id
+   * @return the UTF-8 encoded document, or null if it couldn't be read
+   */
+  public byte[] getDocumentBytes(String id) throws IOException {
+    DocumentCache cache = documentCache;
+    if (cache != null) {
+      byte[] body = getCachedBody(cache, id);
+      // the cache keeps its own copy
+      return (body == null) ? null : body.clone();
+    }
+    CouchResponse resp = get(name + "/" + urlEncodePath(id), null);
+    if (resp.isOk()) {
+      return ownBody(resp);
+    }
+    log.warn("Error getting document - " + resp.getErrorId() + " " + resp.getErrorReason());
+    return null;
+  }
+
+  /**
+   * Retrieves the current revision of a document as its raw JSON, read straight from the
+   * connection.  The stream must be closed.  This bypasses the document cache.
+   *
+   * @param id
+   * @return the document's JSON, or null if it couldn't be read
+   */
+  public InputStream getDocumentStream(String id) throws IOException {
+    return openStream(new HttpGet(session.buildUrl(name + "/" + urlEncodePath(id))), "Error getting document - ");
+  }
+
+  /**
+   * Retrieves the current revision of a document through the document cache.
+   *
+   * @param cache
+   * @param id
+   * @return the document
+   */
+  private Document getCachedDocument(DocumentCache cache, String id) throws IOException {
+    byte[] body = getCachedBody(cache, id);
+    if (body == null) {
+      return null;
+    }
+    Document doc = new Document(session.getCodec().readObject(new ByteArrayInputStream(body)));
+    doc.setDatabase(this);
+    return doc;
+  }
+
+  /**
+   * Retrieves the JSON of the current revision of a document through the document cache.  A cached
+   * copy is revalidated with If-None-Match (unless it is still fresh) and reused if the server
+   * answers 304.
+   *
+   * @param cache
+   * @param id
+   * @return the body (shared with the cache), or null if it couldn't be read
+   */
+  private byte[] getCachedBody(DocumentCache cache, String id) throws IOException {
+    DocumentCache.Entry cached = cache.get(id);
+    if (cached != null && cache.isFresh(cached)) {
+      cache.hit();
+      return cached.body;
+    }
+    CouchResponse resp = getIfNoneMatch(name + "/" + urlEncodePath(id), cached == null ? null : cached.etag);
+    if (cached != null && resp.getStatusCode() == 304) {
+      cache.revalidated(cached);
+      return cached.body;
+    }
+    cache.miss();
+    if (resp.isOk()) {
+      byte[] body = ownBody(resp);
+      String etag = resp.getHeader("ETag");
+      if (etag != null) {
+        cache.put(id, etag, body);
+      }
+      else {
+        cache.remove(id);
+      }
+      return body;
+    }
+    cache.remove(id);
+    log.warn("Error getting document - " + resp.getErrorId() + " " + resp.getErrorReason());
+    return null;
+  }
+
+  /**
+   * Puts a document that was just saved into the document cache, so reading it back doesn't
+   * download it again.  Documents with attachments are dropped instead, since the server's
+   * copy holds stubs rather than what was sent.
+   *
+   * @param doc
+   */
+  private void cacheSavedDocument(Document doc) throws IOException {
+    DocumentCache cache = documentCache;
+    if (cache == null) {
+      return;
+    }
+    if (doc.containsKey("_attachments")) {
+      cache.remove(doc.getId());
+      return;
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    session.getCodec().write(doc, out);
+    cache.put(doc.getId(), DocumentCache.etag(doc.getRev()), out.toByteArray());
+  }
+
+  /**
+   * The cache used by getDocument(id), or null if documents aren't cached (the default)
+   *
+   * @return
+   */
+  public DocumentCache getDocumentCache() {
+    return documentCache;
+  }
+
+  /**
+   * Sets a cache for getDocument(id).  Documents read, saved or deleted through this Database
+   * are kept in (or dropped from) the cache.  Pass null to stop caching.
+   *
+   * @param documentCache
+   */
+  public void setDocumentCache(DocumentCache documentCache) {
+    this.documentCache = documentCache;
+  }
+
+  /**
+   * Sends a GET, sharing the request with any identical one already in flight if reads are
+   * coalesced.  The CouchResponse is then shared too, but it is only read: each caller parses its
+   * own copy of the body.
+   *
+   * @param url
+   * @param queryString (may be null)
+   * @return
+   */
+  private CouchResponse get(final String url, final String queryString) throws IOException {
+    SingleFlight<String, CouchResponse> flight = readFlight;
+    if (flight == null) {
+      return session.get(url, queryString);
+    }
+    return flight.execute(queryString == null ? url : url + "?" + queryString, new Callable<CouchResponse>() {
+      public CouchResponse call() {
+        return session.get(url, queryString);
+      }
+    });
+  }
+
+  /**
+   * A conditional GET, coalesced like get() (with the etag as part of the key)
+   */
+  private CouchResponse getIfNoneMatch(final String url, final String etag) throws IOException {
+    SingleFlight<String, CouchResponse> flight = readFlight;
+    if (flight == null) {
+      return session.getIfNoneMatch(url, etag);
+    }
+    return flight.execute(url + " If-None-Match: " + etag, new Callable<CouchResponse>() {
+      public CouchResponse call() {
+        return session.getIfNoneMatch(url, etag);
+      }
+    });
+  }
+
+  /**
+   * The body of a response from get() or getIfNoneMatch(), copied if reads are coalesced, since
+   * the same response (and body) may then have been handed to other callers too
+   */
+  private byte[] ownBody(CouchResponse resp) {
+    byte[] body = resp.getBodyAsBytes();
+    return (body != null && readFlight != null) ? body.clone() : body;
+  }
+
+  /**
+   * Should concurrent identical reads share one request?  When on, a getDocument() (same id and
+   * revision options) or view() (same URL and query string) that arrives while the same GET is
+   * already in flight waits for that request and gets its result, instead of sending another.
+   * A read that starts after the request completes sends a new one, so nothing stale is returned.
+   * The default is off.
+   *
+   * @param coalesceReads
+   */
+  public void setCoalesceReads(boolean coalesceReads) {
+    if (!coalesceReads) {
+      readFlight = null;
+    }
+    else if (readFlight == null) {
+      readFlight = new SingleFlight<String, CouchResponse>();
+    }
+  }
+
+  /**
+   * Are concurrent identical reads coalesced?
+   *
+   * @return
+   * @see setCoalesceReads()
+   */
+  public boolean isCoalesceReads() {
+    return readFlight != null;
+  }
+
+  /**
+   * The number of reads answered with another thread's request since coalescing was turned on
+   *
+   * @return
+   */
+  public long getCoalescedReadCount() {
+    SingleFlight<String, CouchResponse> flight = readFlight;
+    return (flight == null) ? 0 : flight.getSharedCount();
+  }
+
+  /**
+   * Deletes a document
+   *
+   * @param d
+   * @return was the delete successful?
+   * @throws IllegalArgumentException for blank document id
+   */
+  public boolean deleteDocument(Document d) throws IOException {
+
+    if (StringUtils.isBlank(d.getId())) {
+      throw new IllegalArgumentException("cannot delete document, doc id is empty");
+    }
+
+    CouchResponse resp = session.delete(name + "/" + urlEncodePath(d.getId()) + "?rev=" + d.getRev());
+
+    if (resp.isOk()) {
+      DocumentCache cache = documentCache;
+      if (cache != null) {
+        cache.remove(d.getId());
+      }
+      return true;
+    }
+    else {
+      log.warn("Error deleting document - "+resp.getErrorId()+" "+resp.getErrorReason());
+			return false;
+		}
+		
+	}
+	
+  /**
+   * Deletes a document without blocking the caller.
+   *
+   * @param d
+   * @return a Future for whether the delete was successful
+   */
+  public Future<Boolean> deleteDocumentAsync(final Document d) {
+    return session.submit(new Callable<Boolean>() {
+      public Boolean call() throws IOException {
+        return deleteDocument(d);
+      }
+    });
+  }
+
+  /**
+   * Gets attachment (as text; use one of the other getAttachment methods for binary data)
+   *
+   * @param id
+   * @param attachment attachment body
+   * @return attachment body
+   */
+    public String getAttachment(String id, String attachment) throws IOException {
+        CouchResponse resp = session.get(name + "/" + urlEncodePath(id) + "/" + attachment);
         return resp.getBody();
     }
 
@@ -420,6 +1373,605 @@ public class Database {
         CouchResponse resp = session.put(name + "/" + urlEncodePath(id) + "/" + fname, ctype, attachment);
         return resp.getBody();
     }
+
+  /**
+   * Uploads a file as an attachment.  The file is sent straight from disk (with
+   * FileChannel.transferTo), so it is never held in memory.
+   *
+   * @param id the document (created if it doesn't exist)
+   * @param rev the document's current _rev (null for a new document)
+   * @param name attachment name
+   * @param contentType
+   * @param file
+   * @return the document's new _rev
+   * @throws CouchException if the server refused the attachment (a conflict, for example)
+   */
+  public String putAttachment(String id, String rev, String name, String contentType, File file) throws IOException {
+    return putAttachment(id, rev, name, new FileChannelEntity(file, contentType), null);
+  }
+
+  /**
+   * Uploads an attachment from a stream.  The stream is read while the request is sent, and
+   * isn't closed.  A request sent from a stream can't be repeated, so with cookie authentication
+   * a session that expires just then makes it fail rather than being retried.
+   *
+   * @param id the document (created if it doesn't exist)
+   * @param rev the document's current _rev (null for a new document)
+   * @param name attachment name
+   * @param contentType
+   * @param in
+   * @param length the number of bytes to send, or -1 to read to the end of the stream (sent chunked)
+   * @return the document's new _rev
+   */
+  public String putAttachment(String id, String rev, String name, String contentType, InputStream in, long length) throws IOException {
+    InputStreamEntity entity = new InputStreamEntity(in, length);
+    entity.setContentType(contentType);
+    entity.setChunked(length < 0);
+    return putAttachment(id, rev, name, entity, null);
+  }
+
+  /**
+   * Uploads the remaining bytes of a buffer (which can be a direct or mapped buffer) as an
+   * attachment.  The MD5 of the content is sent along, so the server rejects it if it arrives
+   * damaged.
+   *
+   * @param id the document (created if it doesn't exist)
+   * @param rev the document's current _rev (null for a new document)
+   * @param name attachment name
+   * @param contentType
+   * @param data
+   * @return the document's new _rev
+   */
+  public String putAttachment(String id, String rev, String name, String contentType, ByteBuffer data) throws IOException {
+    MessageDigest md5 = md5();
+    md5.update(data.duplicate());
+    String contentMD5 = new String(Base64.encodeBase64(md5.digest()), "US-ASCII");
+    return putAttachment(id, rev, name, new ByteBufferEntity(data, contentType), contentMD5);
+  }
+
+  private String putAttachment(String id, String rev, String name, HttpEntity entity, String contentMD5) throws IOException {
+    HttpPut put = new HttpPut(session.buildUrl(attachmentUrl(id, name), rev == null ? null : "rev=" + rev));
+    put.setEntity(entity);
+    if (contentMD5 != null) {
+      put.setHeader("Content-MD5", contentMD5);
+    }
+    CouchResponse resp = session.http(put);
+    DocumentCache cache = documentCache;
+    if (cache != null) {
+      cache.remove(id);
+    }
+    if (!resp.isOk()) {
+      throw couchError(resp);
+    }
+    return resp.getBodyAsJSONObject().getString("rev");
+  }
+
+  /**
+   * Downloads an attachment as a stream, read straight from the connection.  The stream must be
+   * closed; closing it before the end aborts the request.
+   *
+   * @param id
+   * @param name attachment name
+   * @return the content of the attachment
+   * @throws CouchException if the document or attachment doesn't exist
+   */
+  public InputStream getAttachmentStream(String id, String name) throws IOException {
+    return openStream(attachmentGet(id, name));
+  }
+
+  /**
+   * Downloads an attachment into a stream.  The stream isn't closed.
+   *
+   * @param id
+   * @param name attachment name
+   * @param out
+   * @return the content type, length and digest of what was written
+   * @throws CouchException if the document or attachment doesn't exist
+   * @throws IOException if the content doesn't match the digest the server sent
+   */
+  public Attachment getAttachment(String id, String name, OutputStream out) throws IOException {
+    HttpGet get = attachmentGet(id, name);
+    HttpResponse response = openResponse(get);
+    MessageDigest md5 = md5();
+    long length = copy(new DigestInputStream(responseStream(get, response), md5), out);
+    return attachment(name, response, length, md5);
+  }
+
+  /**
+   * Downloads an attachment into a file, which is created or overwritten.  The content is written
+   * to the file with FileChannel.transferFrom as it arrives.
+   *
+   * @param id
+   * @param name attachment name
+   * @param file
+   * @return the content type, length and digest of what was written
+   * @throws CouchException if the document or attachment doesn't exist
+   * @throws IOException if the content doesn't match the digest the server sent
+   */
+  public Attachment getAttachment(String id, String name, File file) throws IOException {
+    return download(attachmentGet(id, name), name, file);
+  }
+
+  private Attachment download(HttpGet get, String name, File file) throws IOException {
+    HttpResponse response = openResponse(get);
+    MessageDigest md5 = md5();
+    InputStream in = new DigestInputStream(responseStream(get, response), md5);
+    long length = 0;
+    try {
+      FileOutputStream out = new FileOutputStream(file);
+      try {
+        ReadableByteChannel source = Channels.newChannel(in);
+        FileChannel channel = out.getChannel();
+        long n;
+        // transferFrom only comes back empty at the end of the stream
+        while ((n = channel.transferFrom(source, length, COPY_BUFFER_SIZE * 8)) > 0) {
+          length += n;
+        }
+      }
+      finally {
+        out.close();
+      }
+    }
+    finally {
+      in.close();
+    }
+    return attachment(name, response, length, md5);
+  }
+
+  /**
+   * Downloads an attachment into the remaining space of a buffer, which can be a direct or mapped
+   * buffer (ex: a region of a file mapped with FileChannel.map).  The buffer's position is
+   * advanced past the content.
+   *
+   * @param id
+   * @param name attachment name
+   * @param buffer
+   * @return the content type, length and digest of what was written
+   * @throws CouchException if the document or attachment doesn't exist
+   * @throws IOException if the attachment doesn't fit, or doesn't match the digest the server sent
+   */
+  public Attachment getAttachment(String id, String name, ByteBuffer buffer) throws IOException {
+    HttpGet get = attachmentGet(id, name);
+    HttpResponse response = openResponse(get);
+    long expected = response.getEntity().getContentLength();
+    if (expected > buffer.remaining()) {
+      get.abort();
+      throw new IOException("attachment " + name + " is " + expected + " bytes, the buffer only has room for " + buffer.remaining());
+    }
+    MessageDigest md5 = md5();
+    InputStream in = new DigestInputStream(responseStream(get, response), md5);
+    long length = 0;
+    try {
+      ReadableByteChannel source = Channels.newChannel(in);
+      int n;
+      while (buffer.hasRemaining() && (n = source.read(buffer)) != -1) {
+        length += n;
+      }
+      if (!buffer.hasRemaining() && in.read() != -1) {
+        throw new IOException("attachment " + name + " doesn't fit in the buffer");
+      }
+    }
+    finally {
+      in.close();
+    }
+    return attachment(name, response, length, md5);
+  }
+
+  /**
+   * Downloads part of an attachment as a stream, with an HTTP Range request, so only that part is
+   * transferred.  The stream must be closed.  A range that runs past the end of the attachment is
+   * cut short; one that starts past the end gives an empty stream.
+   *
+   * @param id
+   * @param name attachment name
+   * @param offset the first byte to read
+   * @param length the number of bytes to read
+   * @return the content of that part of the attachment
+   * @throws CouchException if the document or attachment doesn't exist
+   */
+  public InputStream getAttachmentStream(String id, String name, long offset, long length) throws IOException {
+    if (offset < 0 || length < 0) {
+      throw new IllegalArgumentException("offset and length can't be negative");
+    }
+    if (length == 0) {
+      return new ByteArrayInputStream(new byte[0]);
+    }
+    HttpGet get = attachmentGet(id, name);
+    get.setHeader("Range", "bytes=" + offset + "-" + (offset + length - 1));
+    HttpResponse response = session.stream(get);
+    int status = response.getStatusLine().getStatusCode();
+    if (status == 206) {
+      return responseStream(get, response);
+    }
+    else if (status == 416) {
+      // starts past the end
+      new CouchResponse(get, response, session.getCodec());
+      return new ByteArrayInputStream(new byte[0]);
+    }
+    else if (status != 200) {
+      throw couchError(new CouchResponse(get, response, session.getCodec()));
+    }
+    // the server ignored the Range header and sent the whole attachment
+    InputStream in = new ResponseInputStream(get, response.getEntity().getContent(), offset + length);
+    long skipped = 0;
+    while (skipped < offset) {
+      long n = in.skip(offset - skipped);
+      if (n <= 0) {
+        if (in.read() == -1) {
+          break;
+        }
+        n = 1;
+      }
+      skipped += n;
+    }
+    return in;
+  }
+
+  /**
+   * Downloads part of an attachment into a new buffer, with an HTTP Range request.
+   *
+   * @param id
+   * @param name attachment name
+   * @param offset the first byte to read
+   * @param length the number of bytes to read
+   * @return a buffer holding the bytes that were read (fewer than length if the attachment ends first)
+   * @throws CouchException if the document or attachment doesn't exist
+   */
+  public ByteBuffer getAttachmentRange(String id, String name, long offset, int length) throws IOException {
+    byte[] bytes = new byte[length];
+    int read = 0;
+    InputStream in = getAttachmentStream(id, name, offset, length);
+    try {
+      int n;
+      while (read < length && (n = in.read(bytes, read, length - read)) != -1) {
+        read += n;
+      }
+      if (read == length) {
+        // read to the end, so the connection can be reused
+        in.read();
+      }
+    }
+    finally {
+      in.close();
+    }
+    return ByteBuffer.wrap(bytes, 0, read).slice();
+  }
+
+  /**
+   * Opens a seekable channel over an attachment, which reads it in 64 KB blocks fetched with
+   * Range requests as they are needed, and keeps the last 16 blocks read.
+   *
+   * @param id
+   * @param name attachment name
+   * @return
+   * @throws CouchException if the document or attachment doesn't exist
+   * @see AttachmentChannel
+   */
+  public AttachmentChannel openAttachmentChannel(String id, String name) throws IOException {
+    return openAttachmentChannel(id, name, AttachmentChannel.DEFAULT_BLOCK_SIZE, AttachmentChannel.DEFAULT_CACHED_BLOCKS);
+  }
+
+  /**
+   * Opens a seekable channel over an attachment, which reads it in blocks fetched with Range
+   * requests as they are needed.
+   *
+   * @param id
+   * @param name attachment name
+   * @param blockSize the size of each request (blocks are aligned to multiples of it)
+   * @param cachedBlocks the number of blocks to keep
+   * @return
+   * @throws CouchException if the document or attachment doesn't exist
+   */
+  public AttachmentChannel openAttachmentChannel(String id, String name, int blockSize, int cachedBlocks) throws IOException {
+    HttpHead head = new HttpHead(session.buildUrl(attachmentUrl(id, name)));
+    head.setHeader("Accept-Encoding", "identity");
+    HttpResponse response = session.stream(head);
+    if (response.getStatusLine().getStatusCode() != 200) {
+      throw new CouchException(String.valueOf(response.getStatusLine().getStatusCode()), response.getStatusLine().getReasonPhrase());
+    }
+    Header length = response.getFirstHeader("Content-Length");
+    if (length == null) {
+      throw new IOException("the size of attachment " + name + " is unknown");
+    }
+    return new AttachmentChannel(this, id, name, Long.parseLong(length.getValue()), blockSize, cachedBlocks);
+  }
+
+  private String attachmentUrl(String id, String name) throws IOException {
+    return this.name + "/" + urlEncodePath(id) + "/" + urlEncodePath(name);
+  }
+
+  /**
+   * Reads an attachment of a document, using the attachment cache if there is one.  The
+   * attachment is looked up in the cache by the digest of its stub in the document's _attachments,
+   * so when it is cached the server isn't asked at all.  Otherwise it is downloaded (from the
+   * document's revision) into the cache first.  Without a cache, it is downloaded into memory.
+   *
+   * @param doc a document read from this database, including its _attachments stubs
+   * @param name attachment name
+   * @return the content of the attachment (a read-only mapping of the cached file, if it is cached)
+   * @throws CouchException if the document doesn't have the attachment
+   * @throws IOException if the download doesn't match the stub's md5 digest (it isn't cached then)
+   */
+  public ByteBuffer getAttachment(Document doc, String name) throws IOException {
+    JSONObject attachments = doc.getJSONObject().optJSONObject("_attachments");
+    JSONObject stub = (attachments == null) ? null : attachments.optJSONObject(name);
+    if (stub == null) {
+      throw new CouchException("not_found", "Document is missing attachment " + name);
+    }
+    HttpGet get = attachmentGet(doc.getId(), doc.getRev(), name);
+    String digest = stub.optString("digest", null);
+    AttachmentCache cache = attachmentCache;
+    if (cache == null || digest == null) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(stub.optInt("length", COPY_BUFFER_SIZE));
+      copy(openStream(get), out);
+      return ByteBuffer.wrap(out.toByteArray());
+    }
+    ByteBuffer cached = cache.get(digest);
+    if (cached != null) {
+      return cached;
+    }
+    File temp = cache.createTempFile();
+    try {
+      String received = download(get, name, temp).getDigest();
+      if (digest.startsWith("md5-") && !digest.equals(received)) {
+        // a truncated or wrong download must not become a cache entry
+        throw new IOException("attachment " + name + " doesn't match its digest (" + digest + ", received " + received + ")");
+      }
+    }
+    catch (IOException e) {
+      temp.delete();
+      throw e;
+    }
+    return cache.put(digest, temp);
+  }
+
+  /**
+   * The cache used by getAttachment(Document, String), or null if attachments aren't cached (the default)
+   *
+   * @return
+   */
+  public AttachmentCache getAttachmentCache() {
+    return attachmentCache;
+  }
+
+  /**
+   * Sets an on disk cache for getAttachment(Document, String).  Pass null to stop caching.
+   *
+   * @param attachmentCache
+   */
+  public void setAttachmentCache(AttachmentCache attachmentCache) {
+    this.attachmentCache = attachmentCache;
+  }
+
+  /**
+   * Saves a document together with new attachments in a single multipart/related PUT.  The
+   * attachment content is streamed from its files, buffers or streams after the document's JSON,
+   * rather than being base64 encoded into it or sent with one putAttachment() per attachment.
+   * Attachments already in the document's _attachments are kept; ones with the same name are
+   * replaced.
+   * <p/>
+   * If the document has no _id, one is generated.  The document's _id and _rev are updated.
+   *
+   * @param doc
+   * @param attachments created with Attachment.of()
+   * @throws CouchException if the save fails (for instance with a conflict)
+   */
+  public void saveDocument(Document doc, List<Attachment> attachments) throws IOException {
+    if (doc.getId() == null || doc.getId().equals("")) {
+      doc.setId(UUID.randomUUID().toString().replace("-", ""));
+    }
+    JSONObject json = JSONObject.fromObject(doc.getJSONObject());
+    JSONObject stubs = new JSONObject();
+    JSONObject existing = json.optJSONObject("_attachments");
+    if (existing != null) {
+      stubs.putAll(existing);
+    }
+    for (Attachment a : attachments) {
+      JSONObject stub = new JSONObject();
+      stub.put("follows", true);
+      stub.put("content_type", a.getContentType());
+      stub.put("length", a.getLength());
+      // re-added so they are in the same order as the parts
+      stubs.remove(a.getName());
+      stubs.put(a.getName(), stub);
+    }
+    json.put("_attachments", stubs);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    session.getCodec().write(json, out);
+
+    HttpPut put = new HttpPut(session.buildUrl(name + "/" + urlEncodePath(doc.getId())));
+    put.setEntity(new MultipartEntity(out.toByteArray(), attachments));
+    CouchResponse resp = session.http(put);
+    DocumentCache cache = documentCache;
+    if (cache != null) {
+      cache.remove(doc.getId());
+    }
+    if (!resp.isOk()) {
+      throw couchError(resp);
+    }
+    doc.setRev(resp.getBodyAsJSONObject().getString("rev"));
+    doc.setDatabase(this);
+  }
+
+  /**
+   * Retrieves the current revision of a document together with the content of all of its
+   * attachments, in one multipart/related response (so the content isn't base64 encoded).  This
+   * bypasses the document cache.
+   *
+   * @param id
+   * @param attachments filled with the attachments (by name), each holding its content
+   * @return the document, or null if it couldn't be read
+   * @see #getDocumentWithAttachments(String, AttachmentHandler)
+   */
+  public Document getDocumentWithAttachments(String id, final Map<String, Attachment> attachments) throws IOException {
+    return getDocumentWithAttachments(id, new AttachmentHandler() {
+      public void onAttachment(String name, String contentType, String digest, InputStream content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        copy(content, out);
+        byte[] bytes = out.toByteArray();
+        attachments.put(name, new Attachment(name, contentType, bytes.length, digest, ByteBuffer.wrap(bytes)));
+      }
+    });
+  }
+
+  /**
+   * Retrieves the current revision of a document together with the content of all of its
+   * attachments, handing each attachment to the handler as a stream while it is read from the
+   * response.  Unlike getDocumentWithAttachments(String, Map), no attachment is held in memory.
+   * This bypasses the document cache.
+   *
+   * @param id
+   * @param handler
+   * @return the document, or null if it couldn't be read
+   */
+  public Document getDocumentWithAttachments(String id, AttachmentHandler handler) throws IOException {
+    HttpGet get = new HttpGet(session.buildUrl(name + "/" + urlEncodePath(id), "attachments=true"));
+    get.setHeader("Accept", "multipart/related,application/json");
+    // attachments are usually already compressed
+    get.setHeader("Accept-Encoding", "identity");
+    HttpResponse response;
+    try {
+      response = openResponse(get);
+    }
+    catch (CouchException e) {
+      log.warn("Error getting document - " + e.getErrorId() + " " + e.getErrorReason());
+      return null;
+    }
+    InputStream in = responseStream(get, response);
+    try {
+      Header contentType = response.getEntity().getContentType();
+      String boundary = (contentType == null) ? null : MultipartReader.boundary(contentType.getValue());
+      Document doc;
+      if (boundary == null) {
+        // a document without attachments comes back as plain JSON
+        doc = new Document(session.getCodec().readObject(in));
+        readInlineAttachments(doc, handler);
+      }
+      else {
+        doc = readMultipartDocument(new MultipartReader(in, boundary), handler);
+      }
+      doc.setDatabase(this);
+      return doc;
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Reads a multipart/related document: the JSON, then one part per attachment in the order of
+   * its _attachments
+   */
+  private Document readMultipartDocument(MultipartReader reader, AttachmentHandler handler) throws IOException {
+    if (!reader.nextPart()) {
+      throw new IOException("multipart document has no parts");
+    }
+    Document doc = new Document(session.getCodec().readObject(new ByteArrayInputStream(reader.readPart())));
+    JSONObject stubs = doc.getJSONObject().optJSONObject("_attachments");
+    List<String> names = new ArrayList<String>();
+    if (stubs != null) {
+      for (Object key : stubs.keySet()) {
+        names.add((String) key);
+      }
+    }
+    int index = 0;
+    while (reader.nextPart()) {
+      String name = filename(reader.getHeader("content-disposition"));
+      if (name == null && index < names.size()) {
+        name = names.get(index);
+      }
+      index++;
+      if (name == null) {
+        throw new IOException("multipart document has more parts than attachments");
+      }
+      InputStream content = reader.openPart();
+      if ("gzip".equalsIgnoreCase(reader.getHeader("content-encoding"))) {
+        content = new GZIPInputStream(content);
+      }
+      JSONObject stub = (stubs == null) ? null : stubs.optJSONObject(name);
+      String type = reader.getHeader("content-type");
+      if (stub != null) {
+        type = stub.optString("content_type", type);
+      }
+      String digest = (stub == null) ? null : stub.optString("digest", null);
+      handler.onAttachment(name, type, digest, content);
+    }
+    return doc;
+  }
+
+  /**
+   * Decodes the base64 "data" of the attachments in a JSON document
+   */
+  private static void readInlineAttachments(Document doc, AttachmentHandler handler) throws IOException {
+    JSONObject stubs = doc.getJSONObject().optJSONObject("_attachments");
+    if (stubs == null) {
+      return;
+    }
+    for (Object key : stubs.keySet()) {
+      String name = (String) key;
+      JSONObject stub = stubs.getJSONObject(name);
+      if (!stub.has("data")) {
+        continue;
+      }
+      byte[] content = Base64.decodeBase64(stub.getString("data").getBytes("US-ASCII"));
+      handler.onAttachment(name, stub.optString("content_type", null), stub.optString("digest", null),
+          new ByteArrayInputStream(content));
+    }
+  }
+
+  /**
+   * The filename parameter of a Content-Disposition header
+   */
+  private static String filename(String contentDisposition) {
+    if (contentDisposition == null) {
+      return null;
+    }
+    int start = contentDisposition.indexOf("filename=");
+    if (start < 0) {
+      return null;
+    }
+    String value = contentDisposition.substring(start + "filename=".length()).trim();
+    if (value.startsWith("\"")) {
+      int end = value.indexOf('"', 1);
+      return (end < 0) ? value.substring(1) : value.substring(1, end);
+    }
+    int end = value.indexOf(';');
+    return (end < 0) ? value : value.substring(0, end).trim();
+  }
+
+  private HttpGet attachmentGet(String id, String name) throws IOException {
+    return attachmentGet(id, null, name);
+  }
+
+  private HttpGet attachmentGet(String id, String rev, String name) throws IOException {
+    HttpGet get = new HttpGet(session.buildUrl(attachmentUrl(id, name), rev == null ? null : "rev=" + rev));
+    // attachments are usually already compressed, and the digest is of the content as stored
+    get.setHeader("Accept-Encoding", "identity");
+    return get;
+  }
+
+  /**
+   * Describes a downloaded attachment, after checking it against the server's Content-MD5 (if any)
+   */
+  private Attachment attachment(String name, HttpResponse response, long length, MessageDigest md5) throws IOException {
+    String digest = new String(Base64.encodeBase64(md5.digest()), "US-ASCII");
+    Header expected = response.getFirstHeader("Content-MD5");
+    if (expected != null && !expected.getValue().equals(digest)) {
+      throw new IOException("attachment " + name + " doesn't match its Content-MD5 (" + expected.getValue() + ", received " + digest + ")");
+    }
+    HttpEntity entity = response.getEntity();
+    String contentType = (entity.getContentType() == null) ? null : entity.getContentType().getValue();
+    return new Attachment(name, contentType, length, "md5-" + digest);
+  }
+
+  private static MessageDigest md5() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
     
   /**
    * Update an existing document using a document update handler. Returns false if there is a failure
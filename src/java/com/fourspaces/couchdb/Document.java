@@ -66,6 +66,9 @@ public class Document implements Map {
 	protected JSONObject object;
 	
 	boolean loaded = false;
+
+	/** set for Documents from ViewResults.getResults() until they have been refreshed */
+	ViewResults.BatchLoader batchLoader = null;
 	
 	/**
 	 * Create a new Document
@@ -98,6 +101,22 @@ public class Document implements Map {
 		}
 	}
 	
+	/**
+	 * Merges the full document into this view row.  Unlike load(), this is done even though the
+	 * row itself counts as loaded.  Only keys the row doesn't have yet are added, so unsaved
+	 * changes aren't overwritten.
+	 * 
+	 * @param full
+	 */
+	void merge(JSONObject full) {
+		for (Object key : full.keySet()) {
+			if (!object.containsKey(key)) {
+				object.put(key, full.get(key));
+			}
+		}
+		loaded=true;
+	}
+	
 	/**
 	 * This document's id (if saved)
 	 * @return
@@ -267,12 +286,20 @@ public class Document implements Map {
 	/**
 	 * Loads data from the server for this document.  Actually requests a new copy of data from the 
 	 * server and uses that to populate this document.  This doesn't overwrite any unsaved data.
+	 * <p>
+	 * Documents from ViewResults.getResults() are loaded in batches (see ViewResults.setBatchLoadSize()).
 	 */
 	public void refresh() throws IOException {
+		ViewResults.BatchLoader loader = batchLoader;
+		if (loader!=null && loader.load(this)) {
+			return;
+		}
 		if (database!=null) {
 			Document doc = database.getDocument(getId());
-			log.info("Loading: "+doc.getJSONObject());
-			load(doc.getJSONObject());
+			if (doc!=null) {
+				log.info("Loading: "+doc.getJSONObject());
+				load(doc.getJSONObject());
+			}
 		}
 	}
 	
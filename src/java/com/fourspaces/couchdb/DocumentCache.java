@@ -0,0 +1,212 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A bounded, least-recently-used cache of document bodies for a single Database.
+ * <p>
+ * Each entry holds the raw JSON of a document together with its ETag (the quoted _rev).  When a
+ * cached document is read again, Database.getDocument() sends the ETag as If-None-Match and, if the
+ * server answers 304 Not Modified, builds the Document from the cached bytes instead of downloading
+ * it again.  Entries younger than maxAge are returned without asking the server at all.
+ * <p>
+ * Saves and deletes through the Database keep the cache up to date, so reading back a document
+ * you just saved is answered from the cache (or with a 304 if maxAge is 0).
+ * <p>
+ * The size limit is the total number of bytes of the cached documents.  The cache is keyed by
+ * document id, so don't share one between databases.
+ * <p>
+ * Ex usage: <br>
+ * db.setDocumentCache(new DocumentCache(16 * 1024 * 1024));
+ *
+ * @see Database#setDocumentCache(DocumentCache)
+ */
+public class DocumentCache {
+	/** Rough per entry overhead (map entry, key and Entry object), counted towards the size */
+	private static final int ENTRY_OVERHEAD = 64;
+
+	private final long maxBytes;
+	private final long maxAge;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long size = 0;
+	private long hits = 0;
+	private long misses = 0;
+
+	static class Entry {
+		final String etag;
+		final byte[] body;
+		final long weight;
+		long verified;
+
+		Entry(String etag, byte[] body, long verified) {
+			this.etag = etag;
+			this.body = body;
+			this.verified = verified;
+			this.weight = body.length + ENTRY_OVERHEAD;
+		}
+	}
+
+	/**
+	 * Creates a cache that revalidates every read with the server.
+	 * @param maxBytes the total size of the cached documents
+	 */
+	public DocumentCache(long maxBytes) {
+		this(maxBytes, 0);
+	}
+
+	/**
+	 * Creates a cache that returns entries without revalidating them for maxAge milliseconds after
+	 * they were stored or last revalidated.  Changes made by other clients in that time won't be seen.
+	 * @param maxBytes the total size of the cached documents
+	 * @param maxAge in milliseconds (0 to always revalidate)
+	 */
+	public DocumentCache(long maxBytes, long maxAge) {
+		if (maxBytes <= 0) {
+			throw new IllegalArgumentException("maxBytes must be positive");
+		}
+		if (maxAge < 0) {
+			throw new IllegalArgumentException("maxAge can't be negative");
+		}
+		this.maxBytes = maxBytes;
+		this.maxAge = maxAge;
+	}
+
+	/**
+	 * The cached entry for a document
+	 * @param id
+	 * @return the entry, or null if the document isn't cached
+	 */
+	synchronized Entry get(String id) {
+		return entries.get(id);
+	}
+
+	/**
+	 * Is the entry recent enough to be used without asking the server?
+	 * @param e
+	 * @return
+	 */
+	synchronized boolean isFresh(Entry e) {
+		return maxAge > 0 && System.currentTimeMillis() - e.verified < maxAge;
+	}
+
+	/**
+	 * Records a read that was answered with a fresh entry.
+	 */
+	synchronized void hit() {
+		hits++;
+	}
+
+	/**
+	 * Records a read where the server confirmed (with a 304) that the entry is still current.
+	 * @param e
+	 */
+	synchronized void revalidated(Entry e) {
+		hits++;
+		e.verified = System.currentTimeMillis();
+	}
+
+	/**
+	 * Records a read that had to download the document.
+	 */
+	synchronized void miss() {
+		misses++;
+	}
+
+	/**
+	 * Stores a document body.  Bodies bigger than the whole cache aren't stored.
+	 * @param id
+	 * @param etag
+	 * @param body
+	 */
+	synchronized void put(String id, String etag, byte[] body) {
+		remove(id);
+		Entry e = new Entry(etag, body, System.currentTimeMillis());
+		if (e.weight > maxBytes) {
+			return;
+		}
+		entries.put(id, e);
+		size += e.weight;
+		Iterator<Entry> it = entries.values().iterator();
+		while (size > maxBytes && it.hasNext()) {
+			size -= it.next().weight;
+			it.remove();
+		}
+	}
+
+	/**
+	 * Drops a document from the cache
+	 * @param id
+	 */
+	public synchronized void remove(String id) {
+		Entry e = entries.remove(id);
+		if (e != null) {
+			size -= e.weight;
+		}
+	}
+
+	/**
+	 * Empties the cache
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	/**
+	 * The number of cached documents
+	 * @return
+	 */
+	public synchronized int getCount() {
+		return entries.size();
+	}
+
+	/**
+	 * The total size of the cached documents (in bytes)
+	 * @return
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * The number of reads that were answered from the cache (fresh or revalidated with a 304)
+	 * @return
+	 */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * The number of reads that downloaded the document (it wasn't cached or had changed)
+	 * @return
+	 */
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	/**
+	 * The ETag CouchDB uses for a document revision
+	 * @param rev
+	 * @return
+	 */
+	static String etag(String rev) {
+		return "\"" + rev + "\"";
+	}
+}
@@ -0,0 +1,89 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * A gzip compressed response body, decompressed as it is read.  The number of compressed bytes
+ * read from the connection is counted, so the compression ratio can be reported.
+ */
+class GzipResponseEntity extends HttpEntityWrapper {
+	private long wireLength = 0;
+	private InputStream content = null;
+
+	GzipResponseEntity(HttpEntity entity) {
+		super(entity);
+	}
+
+	public InputStream getContent() throws IOException {
+		if (content == null) {
+			content = new GZIPInputStream(new FilterInputStream(wrappedEntity.getContent()) {
+				public int read() throws IOException {
+					int b = super.read();
+					if (b != -1) {
+						wireLength++;
+					}
+					return b;
+				}
+
+				public int read(byte[] b, int off, int len) throws IOException {
+					int n = super.read(b, off, len);
+					if (n > 0) {
+						wireLength += n;
+					}
+					return n;
+				}
+			});
+		}
+		return content;
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		InputStream in = getContent();
+		byte[] buf = new byte[8192];
+		int n;
+		while ((n = in.read(buf)) != -1) {
+			out.write(buf, 0, n);
+		}
+	}
+
+	/** the length after decompressing isn't known */
+	public long getContentLength() {
+		return -1;
+	}
+
+	public Header getContentEncoding() {
+		return null;
+	}
+
+	/**
+	 * The number of compressed bytes read so far
+	 * @return
+	 */
+	long getWireLength() {
+		return wireLength;
+	}
+}
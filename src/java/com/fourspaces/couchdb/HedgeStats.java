@@ -0,0 +1,102 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb;
+
+/**
+ * Counts of the hedged reads made by a Session: how many reads were eligible, how many of them
+ * sent a second attempt to another node, and how many of those the second attempt answered first.
+ * A high hedge rate with few wins means the delay is too short; many wins means the primary
+ * node is often the slow one.
+ *
+ * @see Session#getHedgeStats()
+ */
+public class HedgeStats {
+	private long reads;
+	private long hedges;
+	private long hedgeWins;
+	private long delay = -1;
+
+	HedgeStats() {
+	}
+
+	private HedgeStats(HedgeStats other, long delay) {
+		this.reads = other.reads;
+		this.hedges = other.hedges;
+		this.hedgeWins = other.hedgeWins;
+		this.delay = delay;
+	}
+
+	synchronized void record(boolean hedged, boolean hedgeWon) {
+		reads++;
+		if (hedged) {
+			hedges++;
+		}
+		if (hedgeWon) {
+			hedgeWins++;
+		}
+	}
+
+	synchronized HedgeStats snapshot(long delay) {
+		return new HedgeStats(this, delay);
+	}
+
+	/**
+	 * The number of reads sent while hedging was on
+	 * @return
+	 */
+	public long getReadCount() {
+		return reads;
+	}
+
+	/**
+	 * The number of reads that sent a second attempt to another node
+	 * @return
+	 */
+	public long getHedgeCount() {
+		return hedges;
+	}
+
+	/**
+	 * The number of hedged reads the second attempt answered first
+	 * @return
+	 */
+	public long getHedgeWinCount() {
+		return hedgeWins;
+	}
+
+	/**
+	 * The fraction of reads that were hedged
+	 * @return
+	 */
+	public double getHedgeRate() {
+		return (reads == 0) ? 0 : (double) hedges / reads;
+	}
+
+	/**
+	 * How long (in milliseconds) a read currently waits before hedging, or -1 if there aren't
+	 * enough latencies recorded yet (reads aren't hedged until there are)
+	 * @return
+	 */
+	public long getDelay() {
+		return delay;
+	}
+
+	@Override
+	public String toString() {
+		return "[reads: " + reads + ", hedged: " + hedges + " (" + hedgeWins + " won), delay: " + delay + " ms]";
+	}
+}
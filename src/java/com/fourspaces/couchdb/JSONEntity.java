@@ -0,0 +1,174 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import com.fourspaces.couchdb.util.JSONCodec;
+
+/**
+ * A JSON request body that is written by the codec straight to the connection while the request
+ * is sent, instead of being encoded into a String or byte[] first.  The length isn't known up
+ * front, so it is sent chunked, and optionally gzip compressed on the way.
+ * <p>
+ * The body is encoded again each time it is written, so the request can be retried.
+ * <p>
+ * JSON that is already encoded can be passed as a Raw, which is written out as is (and sent with
+ * a Content-Length unless it is compressed).
+ */
+class JSONEntity extends AbstractHttpEntity {
+	private final Object json;
+	private final JSONCodec codec;
+	private final boolean gzip;
+	private volatile long length = -1;
+	private volatile long wireLength = -1;
+
+	/**
+	 * @param json the object to encode (a JSONObject, Document, Map, Collection...)
+	 * @param codec
+	 * @param gzip compress the body?
+	 */
+	JSONEntity(Object json, JSONCodec codec, boolean gzip) {
+		this.json = json;
+		this.codec = codec;
+		this.gzip = gzip;
+		setChunked(gzip || !(json instanceof Raw));
+		if (gzip) {
+			setContentEncoding("gzip");
+		}
+	}
+
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	public boolean isStreaming() {
+		return false;
+	}
+
+	public long getContentLength() {
+		return isChunked() ? -1 : ((Raw) json).length();
+	}
+
+	/**
+	 * Encodes the whole body in memory.  Only used by code that reads the entity back, sending it
+	 * goes through writeTo().
+	 */
+	public InputStream getContent() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		writeTo(bytes);
+		return new ByteArrayInputStream(bytes.toByteArray());
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		if (out == null) {
+			throw new IllegalArgumentException("Output stream may not be null");
+		}
+		CountingOutputStream wire = new CountingOutputStream(out);
+		if (gzip) {
+			GZIPOutputStream zip = new GZIPOutputStream(wire, 8192);
+			CountingOutputStream plain = new CountingOutputStream(zip);
+			write(json, codec, plain);
+			zip.finish();
+			length = plain.count;
+		} else {
+			write(json, codec, wire);
+			length = wire.count;
+		}
+		wire.flush();
+		wireLength = wire.count;
+	}
+
+	/**
+	 * The size of the body before compression, the last time it was sent
+	 * @return -1 if it hasn't been sent
+	 */
+	long getUncompressedLength() {
+		return length;
+	}
+
+	/**
+	 * The number of bytes that went over the wire, the last time the body was sent
+	 * @return -1 if it hasn't been sent
+	 */
+	long getWireLength() {
+		return wireLength;
+	}
+
+	/**
+	 * Writes a request body: a Raw as is, anything else encoded by the codec
+	 * @param json
+	 * @param codec
+	 * @param out
+	 * @throws IOException
+	 */
+	static void write(Object json, JSONCodec codec, OutputStream out) throws IOException {
+		if (json instanceof Raw) {
+			for (byte[] part : ((Raw) json).parts) {
+				out.write(part);
+			}
+			out.flush();
+		} else {
+			codec.write(json, out);
+		}
+	}
+
+	/**
+	 * Already encoded UTF-8 JSON, made of one or more parts that are sent one after the other
+	 */
+	static class Raw {
+		final byte[][] parts;
+
+		Raw(byte[]... parts) {
+			this.parts = parts;
+		}
+
+		long length() {
+			long length = 0;
+			for (byte[] part : parts) {
+				length += part.length;
+			}
+			return length;
+		}
+	}
+
+	private static class CountingOutputStream extends FilterOutputStream {
+		long count = 0;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb;
+
+import java.util.Arrays;
+
+/**
+ * The most recent latencies of some kind of request, for estimating a percentile of them.  The
+ * samples are only sorted again after a batch of new ones has been recorded.
+ */
+class LatencySamples {
+	private static final int SIZE = 512;
+	/** fewer samples than this aren't enough to estimate from */
+	private static final int MIN_SAMPLES = 20;
+	private static final int RESORT_INTERVAL = 32;
+
+	private final long[] samples = new long[SIZE];
+	private int count = 0;
+	private int next = 0;
+	private long[] sorted = null;
+	private int sinceSort = 0;
+
+	/**
+	 * @param millis
+	 */
+	synchronized void record(long millis) {
+		samples[next] = millis;
+		next = (next + 1) % SIZE;
+		if (count < SIZE) {
+			count++;
+		}
+		sinceSort++;
+	}
+
+	/**
+	 * @param percentile (between 0 and 1)
+	 * @return the latency in milliseconds, or -1 if there aren't enough samples yet
+	 */
+	synchronized long percentile(double percentile) {
+		if (count < MIN_SAMPLES) {
+			return -1;
+		}
+		if (sorted == null || sinceSort >= RESORT_INTERVAL) {
+			sorted = new long[count];
+			System.arraycopy(samples, 0, sorted, 0, count);
+			Arrays.sort(sorted);
+			sinceSort = 0;
+		}
+		int index = (int) Math.ceil(percentile * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+	}
+}
@@ -0,0 +1,100 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.conn.tsccm.AbstractConnPool;
+import org.apache.http.impl.conn.tsccm.BasicPoolEntry;
+import org.apache.http.impl.conn.tsccm.ConnPoolByRoute;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.impl.conn.tsccm.WaitingThreadAborter;
+import org.apache.http.params.HttpParams;
+
+/**
+ * A ThreadSafeClientConnManager whose pool also counts the connections handed out and the time
+ * spent waiting for them, and can report how many connections are in use.
+ */
+class MonitoredConnectionManager extends ThreadSafeClientConnManager {
+
+	MonitoredConnectionManager(HttpParams params, SchemeRegistry schemeRegistry) {
+		super(params, schemeRegistry);
+	}
+
+	@Override
+	protected AbstractConnPool createConnectionPool(HttpParams params) {
+		MonitoredPool pool = new MonitoredPool(connOperator, params);
+		pool.enableConnectionGC();
+		return pool;
+	}
+
+	/**
+	 * A snapshot of the pool
+	 * @return
+	 */
+	PoolStats getStats() {
+		return ((MonitoredPool) connectionPool).getStats();
+	}
+
+	static class MonitoredPool extends ConnPoolByRoute {
+		private long leaseCount = 0;
+		private long totalWaitTime = 0;
+
+		MonitoredPool(ClientConnectionOperator operator, HttpParams params) {
+			super(operator, params);
+		}
+
+		@Override
+		protected BasicPoolEntry getEntryBlocking(HttpRoute route, Object state, long timeout, TimeUnit tunit,
+				WaitingThreadAborter aborter) throws ConnectionPoolTimeoutException, InterruptedException {
+			long start = System.currentTimeMillis();
+			BasicPoolEntry entry = null;
+			try {
+				entry = super.getEntryBlocking(route, state, timeout, tunit, aborter);
+				return entry;
+			} finally {
+				poolLock.lock();
+				try {
+					totalWaitTime += System.currentTimeMillis() - start;
+					if (entry != null) {
+						leaseCount++;
+					}
+				} finally {
+					poolLock.unlock();
+				}
+			}
+		}
+
+		PoolStats getStats() {
+			poolLock.lock();
+			try {
+				if (isShutDown) {
+					return new PoolStats(0, 0, 0, maxTotalConnections, leaseCount, totalWaitTime);
+				}
+				int available = freeConnections.size();
+				return new PoolStats(numConnections - available, available, waitingThreads.size(),
+						maxTotalConnections, leaseCount, totalWaitTime);
+			} finally {
+				poolLock.unlock();
+			}
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * A multipart/related request body holding a document's JSON followed by the content of its
+ * attachments, in the form CouchDB accepts for saving a document and its attachments in one PUT.
+ * The attachments are written straight from their files, buffers or streams as the request is
+ * sent.  The JSON must list the attachments in _attachments with "follows": true, in the same
+ * order as they are given here.
+ */
+class MultipartEntity extends AbstractHttpEntity {
+	private final byte[] json;
+	private final List<Attachment> attachments;
+	private final String boundary;
+
+	/**
+	 * @param json the document, already encoded
+	 * @param attachments
+	 */
+	MultipartEntity(byte[] json, List<Attachment> attachments) {
+		this.json = json;
+		this.attachments = attachments;
+		this.boundary = UUID.randomUUID().toString();
+		setContentType("multipart/related; boundary=\"" + boundary + "\"");
+	}
+
+	public boolean isRepeatable() {
+		for (Attachment a : attachments) {
+			if (!a.isRepeatable()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public boolean isStreaming() {
+		return !isRepeatable();
+	}
+
+	public long getContentLength() {
+		long length = partHeader("application/json", null).length + json.length;
+		for (Attachment a : attachments) {
+			length += partHeader(a.getContentType(), a.getName()).length + a.getLength();
+		}
+		return length + ascii("\r\n--" + boundary + "--").length;
+	}
+
+	/**
+	 * Writes the whole body (attachments included) to memory.  Only used by code that reads the
+	 * entity back, sending it goes through writeTo().
+	 */
+	public InputStream getContent() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		writeTo(bytes);
+		return new ByteArrayInputStream(bytes.toByteArray());
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		if (out == null) {
+			throw new IllegalArgumentException("Output stream may not be null");
+		}
+		out.write(partHeader("application/json", null));
+		out.write(json);
+		for (Attachment a : attachments) {
+			out.write(partHeader(a.getContentType(), a.getName()));
+			a.writeTo(out);
+		}
+		out.write(ascii("\r\n--" + boundary + "--"));
+		out.flush();
+	}
+
+	/**
+	 * The delimiter and headers that start a part (the first one without the leading CRLF)
+	 */
+	private byte[] partHeader(String contentType, String filename) {
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		try {
+			if (filename == null) {
+				header.write(ascii("--" + boundary + "\r\n"));
+			} else {
+				header.write(ascii("\r\n--" + boundary + "\r\n"));
+				header.write(("Content-Disposition: attachment; filename=\"" + filename.replace("\"", "\\\"") + "\"\r\n").getBytes("UTF-8"));
+			}
+			if (contentType != null) {
+				header.write(ascii("Content-Type: " + contentType + "\r\n"));
+			}
+			header.write(ascii("\r\n"));
+		} catch (IOException e) {
+			// can't happen with an in memory stream
+			throw new RuntimeException(e);
+		}
+		return header.toByteArray();
+	}
+
+	private static byte[] ascii(String s) {
+		try {
+			return s.getBytes("US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,270 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the parts of a multipart body (such as CouchDB's multipart/related documents) one at a
+ * time from a stream.
+ * <p>
+ * Ex usage: <br>
+ * while (reader.nextPart()) { String type = reader.getHeader("content-type"); reader.readPart(out); }
+ * <p>
+ * A part can also be read as a stream with openPart(), straight from the underlying stream.
+ */
+class MultipartReader {
+	private final InputStream in;
+	/** CRLF + "--" + boundary */
+	private final byte[] delimiter;
+	private Map<String, String> headers = null;
+	private boolean started = false;
+	private boolean done = false;
+	/** the number of parts moved to so far */
+	private int parts = 0;
+	/** how many bytes of the delimiter have been matched (and held back) */
+	private int matched = 0;
+	/** the bytes at the start of the delimiter taken as already read */
+	private int skipped = 0;
+	/** held back bytes of the delimiter to give back, after they turned out not to be one */
+	private int giveBack = 0;
+	private int giveBackEnd = 0;
+	/** a byte read while matching the delimiter, to be looked at again; -1 if none */
+	private int pending = -1;
+
+	/**
+	 * @param in
+	 * @param boundary the boundary parameter of the Content-Type
+	 */
+	MultipartReader(InputStream in, String boundary) {
+		this.in = new BufferedInputStream(in);
+		this.delimiter = ("\r\n--" + boundary).getBytes();
+	}
+
+	/**
+	 * The boundary parameter of a multipart Content-Type header
+	 * @param contentType
+	 * @return the boundary, or null if there is none
+	 */
+	static String boundary(String contentType) {
+		for (String param : contentType.split(";")) {
+			param = param.trim();
+			if (param.toLowerCase().startsWith("boundary=")) {
+				String value = param.substring("boundary=".length()).trim();
+				if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+					value = value.substring(1, value.length() - 1);
+				}
+				return value;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Moves to the next part (skipping whatever is left of the current one) and reads its headers.
+	 * @return false if there are no more parts
+	 * @throws IOException
+	 */
+	boolean nextPart() throws IOException {
+		if (done) {
+			return false;
+		}
+		// the body starts with the delimiter minus its CRLF
+		copyPart(null, started ? 0 : 2);
+		started = true;
+		int a = in.read();
+		int b = in.read();
+		if (a == '-' && b == '-') {
+			done = true;
+			headers = null;
+			return false;
+		}
+		// transport padding, then the CRLF ending the delimiter line
+		while (b != -1 && !(a == '\r' && b == '\n')) {
+			a = b;
+			b = in.read();
+		}
+		if (b == -1) {
+			throw new IOException("multipart body ended in a delimiter");
+		}
+		headers = new HashMap<String, String>();
+		String line;
+		while ((line = readLine()).length() > 0) {
+			int colon = line.indexOf(':');
+			if (colon > 0) {
+				headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+			}
+		}
+		parts++;
+		return true;
+	}
+
+	/**
+	 * A header of the current part
+	 * @param name (lower case)
+	 * @return the value, or null if the part doesn't have it
+	 */
+	String getHeader(String name) {
+		return (headers == null) ? null : headers.get(name);
+	}
+
+	/**
+	 * Copies the body of the current part
+	 * @param out
+	 * @return the number of bytes copied
+	 * @throws IOException
+	 */
+	long readPart(OutputStream out) throws IOException {
+		return copyPart(out, 0);
+	}
+
+	/**
+	 * The body of the current part, read straight from the multipart body.  The stream ends with
+	 * the part; whatever hasn't been read of it when nextPart() is called is skipped.
+	 * @return
+	 */
+	InputStream openPart() {
+		return new PartInputStream(parts);
+	}
+
+	/**
+	 * Reads the body of the current part into memory
+	 * @return
+	 * @throws IOException
+	 */
+	byte[] readPart() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		readPart(out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Copies everything up to the next delimiter, which is consumed.
+	 * @param out where to copy to (null to skip)
+	 * @param skip the number of bytes of the delimiter taken as already read
+	 */
+	private long copyPart(OutputStream out, int skip) throws IOException {
+		if (skip > 0) {
+			matched = skip;
+			skipped = skip;
+		}
+		long count = 0;
+		int c;
+		while ((c = readByte()) != -1) {
+			if (out != null) {
+				out.write(c);
+			}
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * The next byte of the current part's body
+	 * @return the byte, or -1 once the delimiter after the part has been consumed
+	 */
+	private int readByte() throws IOException {
+		if (headers == null && started) {
+			// already at the delimiter
+			return -1;
+		}
+		while (true) {
+			if (giveBack < giveBackEnd) {
+				return delimiter[giveBack++] & 0xff;
+			}
+			int c = pending;
+			if (c >= 0) {
+				pending = -1;
+			} else {
+				c = in.read();
+				if (c == -1) {
+					throw new IOException("multipart body ended without a closing delimiter");
+				}
+			}
+			if (c == delimiter[matched]) {
+				if (++matched == delimiter.length) {
+					matched = 0;
+					skipped = 0;
+					headers = null;
+					return -1;
+				}
+				continue;
+			}
+			if (matched > 0) {
+				// not the delimiter after all; the delimiter only has a CR at its start, so a new
+				// match can only start at c
+				giveBack = skipped;
+				giveBackEnd = matched;
+				matched = 0;
+				skipped = 0;
+				pending = c;
+				continue;
+			}
+			return c;
+		}
+	}
+
+	/**
+	 * One part's body.  It ends early if the reader moves on to another part.
+	 */
+	private class PartInputStream extends InputStream {
+		private final int part;
+
+		PartInputStream(int part) {
+			this.part = part;
+		}
+
+		public int read() throws IOException {
+			return (part == parts) ? readByte() : -1;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			int n = 0;
+			while (n < len) {
+				int c = read();
+				if (c == -1) {
+					break;
+				}
+				b[off + n++] = (byte) c;
+			}
+			return (n == 0) ? -1 : n;
+		}
+	}
+
+	private String readLine() throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n') {
+				break;
+			}
+			line.write(c);
+		}
+		byte[] bytes = line.toByteArray();
+		int length = (bytes.length > 0 && bytes[bytes.length - 1] == '\r') ? bytes.length - 1 : bytes.length;
+		return new String(bytes, 0, length, "UTF-8");
+	}
+}
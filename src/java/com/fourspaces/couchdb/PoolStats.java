@@ -0,0 +1,102 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb;
+
+/**
+ * A snapshot of the state of a Session's connection pool.
+ *
+ * @see Session#getPoolStats()
+ */
+public class PoolStats {
+	private final int leased;
+	private final int available;
+	private final int pending;
+	private final int max;
+	private final long leaseCount;
+	private final long totalWaitTime;
+
+	PoolStats(int leased, int available, int pending, int max, long leaseCount, long totalWaitTime) {
+		this.leased = leased;
+		this.available = available;
+		this.pending = pending;
+		this.max = max;
+		this.leaseCount = leaseCount;
+		this.totalWaitTime = totalWaitTime;
+	}
+
+	/**
+	 * The number of connections in use by a request
+	 * @return
+	 */
+	public int getLeased() {
+		return leased;
+	}
+
+	/**
+	 * The number of open connections waiting to be reused
+	 * @return
+	 */
+	public int getAvailable() {
+		return available;
+	}
+
+	/**
+	 * The number of requests waiting for a connection
+	 * @return
+	 */
+	public int getPending() {
+		return pending;
+	}
+
+	/**
+	 * The maximum number of open connections
+	 * @return
+	 */
+	public int getMax() {
+		return max;
+	}
+
+	/**
+	 * The number of connections handed out since the Session was created
+	 * @return
+	 */
+	public long getLeaseCount() {
+		return leaseCount;
+	}
+
+	/**
+	 * The total time (in milliseconds) requests have spent waiting for a connection
+	 * @return
+	 */
+	public long getTotalWaitTime() {
+		return totalWaitTime;
+	}
+
+	/**
+	 * The average time (in milliseconds) a request waited for a connection
+	 * @return
+	 */
+	public double getAverageWaitTime() {
+		return (leaseCount == 0) ? 0 : (double) totalWaitTime / leaseCount;
+	}
+
+	@Override
+	public String toString() {
+		return "[leased: " + leased + "; available: " + available + "; pending: " + pending + "; max: " + max
+				+ "; leases: " + leaseCount + "; wait time: " + totalWaitTime + " ms]";
+	}
+}
@@ -0,0 +1,109 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.http.client.methods.HttpRequestBase;
+
+/**
+ * The body of a response, read straight from the connection.  Closing it after reading to the end
+ * returns the connection to the pool; closing it early aborts the request (and drops the
+ * connection) rather than reading the rest of a possibly large body.
+ * <p>
+ * The stream can also be limited to the first n bytes of the body, in which case closing it at
+ * that point aborts the request too.
+ */
+class ResponseInputStream extends FilterInputStream {
+	private final HttpRequestBase request;
+	private long remaining;
+	private boolean eof = false;
+	private boolean closed = false;
+
+	/**
+	 * @param request the request the body belongs to
+	 * @param in the body
+	 */
+	ResponseInputStream(HttpRequestBase request, InputStream in) {
+		this(request, in, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param request the request the body belongs to
+	 * @param in the body
+	 * @param limit the most bytes to read from the body
+	 */
+	ResponseInputStream(HttpRequestBase request, InputStream in, long limit) {
+		super(in);
+		this.request = request;
+		this.remaining = limit;
+	}
+
+	public int read() throws IOException {
+		if (remaining <= 0) {
+			return -1;
+		}
+		int b = super.read();
+		if (b == -1) {
+			eof = true;
+		} else {
+			remaining--;
+		}
+		return b;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (remaining <= 0) {
+			return -1;
+		}
+		int n = super.read(b, off, (int) Math.min(len, remaining));
+		if (n == -1) {
+			eof = true;
+		} else {
+			remaining -= n;
+		}
+		return n;
+	}
+
+	public long skip(long n) throws IOException {
+		long skipped = super.skip(Math.min(n, remaining));
+		remaining -= skipped;
+		return skipped;
+	}
+
+	public int available() throws IOException {
+		return (int) Math.min(super.available(), remaining);
+	}
+
+	public boolean markSupported() {
+		return false;
+	}
+
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (eof) {
+			super.close();
+		} else {
+			request.abort();
+		}
+	}
+}
@@ -16,27 +16,52 @@
 
 package com.fourspaces.couchdb;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.lang.ref.WeakReference;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 
+import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
 import org.apache.http.NameValuePair;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.HttpClient;
@@ -47,10 +72,18 @@ import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.params.AllClientPNames;
 import org.apache.http.client.params.ClientPNames;
+import org.apache.http.client.params.CookiePolicy;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.impl.client.RequestWrapper;
 import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+import com.fourspaces.couchdb.util.JSONCodec;
+import com.fourspaces.couchdb.util.JSONWriter;
+import com.fourspaces.couchdb.util.StreamingJSONCodec;
 
 /**
  * The Session is the main connection to the CouchDB instance.  However, you'll only use the Session
@@ -62,6 +95,10 @@ import org.apache.http.message.BasicHeader;
  * Ex usage: <br>
  * Session session = new Session(host,port);
  * Database db = session.getDatabase("dbname");
+ * <p>
+ * A Session (and its Databases) can be shared by any number of threads.  Each call gets its own
+ * CouchResponse (or exception); the deprecated getLastResponse() only sees the calling thread's
+ * requests.  The settings (timeouts, user agent...) should be made before the Session is shared.
  * 
  * @author mbreese
  * @author brennanjubb - HTTP-Auth username/pass
@@ -70,6 +107,8 @@ public class Session {
 	private static final String DEFAULT_CHARSET = "UTF-8";
 
 	private static final String MIME_TYPE_JSON = "application/json";
+	/** JSON request bodies bigger than this are streamed to the connection instead of buffered */
+	private static final int STREAM_THRESHOLD = 64 * 1024;
 	
 	protected Log log = LogFactory.getLog(Session.class);
 	protected final String host;
@@ -79,10 +118,45 @@ public class Session {
 	protected final boolean secure;
 	protected final boolean usesAuth;
 	
-	protected CouchResponse lastResponse;
-	
-	protected HttpClient httpClient;
-    protected HttpParams httpParams;
+	protected final HttpClient httpClient;
+    protected final HttpParams httpParams;
+
+	protected ExecutorService executor;
+	private boolean ownsExecutor = false;
+	/** the size of the executor the Session creates: no more requests can be sent at once */
+	private final int executorThreads;
+
+	private final MonitoredConnectionManager connectionManager;
+	private ScheduledExecutorService evictor;
+	/** sends the second attempts of hedged reads once their delay is up */
+	private ScheduledExecutorService hedger;
+
+	private final String basicAuthorization;
+	private volatile boolean cookieAuth = false;
+	private volatile long sessionRefreshInterval = 9 * 60 * 1000;
+	private volatile long sessionStarted = 0;
+	private final Object sessionLock = new Object();
+
+	private volatile boolean acceptGzip = true;
+	private volatile int gzipThreshold = -1;
+	private final CompressionStats compressionStats = new CompressionStats();
+	/** only for getLastResponse() */
+	private final ThreadLocal<CouchResponse> lastResponse = new ThreadLocal<CouchResponse>();
+
+	/** base URLs of the other nodes hedged reads can go to */
+	private final List<String> hedgeNodes = new CopyOnWriteArrayList<String>();
+	private final AtomicInteger nextHedgeNode = new AtomicInteger();
+	private volatile double hedgePercentile = 0.95;
+	private final LatencySamples readLatency = new LatencySamples();
+	private final HedgeStats hedgeStats = new HedgeStats();
+	/** set on each attempt of a hedged read, to its Attempt */
+	private static final String ATTEMPT_PARAM = "com.fourspaces.couchdb.attempt";
+	/** set on the second attempt of a hedged read, which goes to the hedge node it names */
+	static final String HEDGE_PARAM = "com.fourspaces.couchdb.hedge";
+	/** reads on a fast network answer within a millisecond, so hedge delays have a floor */
+	private static final long MIN_HEDGE_DELAY = 5;
+
+	protected volatile JSONCodec codec = new StreamingJSONCodec();
 
 	/**
 	 * Constructor for obtaining a Session with an HTTP-AUTH username/password and (optionally) a secure connection
@@ -94,6 +168,20 @@ public class Session {
 	 * @param secure  - use an SSL connection?
 	 */
 	public Session(String host, int port, String user, String pass, boolean usesAuth, boolean secure) {
+		this(host, port, user, pass, usesAuth, secure, new ConnectionPoolConfig());
+	}
+
+	/**
+	 * Constructor for obtaining a Session with the given connection pool settings
+	 * @param host - hostname
+	 * @param port - port to use
+	 * @param user - username (or null)
+	 * @param pass - password (or null)
+	 * @param usesAuth
+	 * @param secure  - use an SSL connection?
+	 * @param pool - connection pool settings
+	 */
+	public Session(String host, int port, String user, String pass, boolean usesAuth, boolean secure, ConnectionPoolConfig pool) {
 		this.host = host;
 		this.port = port;
 		this.user = user;
@@ -102,23 +190,136 @@ public class Session {
 		this.secure = secure;
 
         httpParams = new BasicHttpParams();
+        ConnManagerParams.setMaxTotalConnections(httpParams, pool.getMaxTotal());
+        executorThreads = pool.getMaxTotal();
+        ConnManagerParams.setMaxConnectionsPerRoute(httpParams, new ConnPerRouteBean(pool.getMaxPerRoute()));
+        HttpConnectionParams.setStaleCheckingEnabled(httpParams, pool.isStaleCheckingEnabled());
+
         SchemeRegistry schemeRegistry = new SchemeRegistry();
 
         schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
         schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
 
-        ThreadSafeClientConnManager connManager = new ThreadSafeClientConnManager(httpParams, schemeRegistry);
-		DefaultHttpClient defaultClient = new DefaultHttpClient(connManager, httpParams);
+        this.connectionManager = new MonitoredConnectionManager(httpParams, schemeRegistry);
+		DefaultHttpClient defaultClient = new DefaultHttpClient(connectionManager, httpParams);
 		if (user != null) {
 			defaultClient.getCredentialsProvider().setCredentials( AuthScope.ANY, new UsernamePasswordCredentials(user, pass) );
 		}
+		defaultClient.setKeepAliveStrategy(new KeepAliveStrategy(pool.getKeepAlive()));
+		defaultClient.addResponseInterceptor(new AttemptAnswered());
+		if (usesAuth && user != null) {
+			basicAuthorization = basicAuthorization(user, pass);
+		} else {
+			basicAuthorization = null;
+		}
 		
 		this.httpClient = defaultClient;
 
 		setUserAgent("couchdb4j");
 		setSocketTimeout( (30 * 1000) );
 		setConnectionTimeout( (15 * 1000) );
-		
+
+		if (pool.getEvictionInterval() > 0) {
+			evictor = startEviction(connectionManager, pool.getEvictionInterval(), pool.getMaxIdleTime());
+		}
+	}
+
+	/**
+	 * Marks the attempts of hedged reads answered as soon as their response headers have been
+	 * read, before the client can hand the connection back to the pool.
+	 */
+	private static class AttemptAnswered implements HttpResponseInterceptor {
+		public void process(HttpResponse response, HttpContext context) {
+			Object req = context.getAttribute(ExecutionContext.HTTP_REQUEST);
+			if (req instanceof RequestWrapper) {
+				req = ((RequestWrapper) req).getOriginal();
+			}
+			if (req instanceof HttpRequest) {
+				Object attempt = ((HttpRequest) req).getParams().getParameter(ATTEMPT_PARAM);
+				if (attempt instanceof Attempt) {
+					((Attempt) attempt).answered();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Uses the server's Keep-Alive timeout if it sent one (and it is shorter), otherwise the configured duration.
+	 */
+	private static class KeepAliveStrategy implements ConnectionKeepAliveStrategy {
+		private final long keepAlive;
+
+		KeepAliveStrategy(long keepAlive) {
+			this.keepAlive = keepAlive;
+		}
+
+		public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+			long duration = (keepAlive > 0) ? keepAlive : -1;
+			for (Header h : response.getHeaders("Keep-Alive")) {
+				for (HeaderElement e : h.getElements()) {
+					if ("timeout".equalsIgnoreCase(e.getName()) && e.getValue() != null) {
+						try {
+							long timeout = Long.parseLong(e.getValue()) * 1000;
+							if (duration < 0 || timeout < duration) {
+								duration = timeout;
+							}
+						} catch (NumberFormatException ignore) {
+						}
+					}
+				}
+			}
+			return duration;
+		}
+	}
+
+	/**
+	 * Starts the thread that closes expired and idle connections.  Static, so that neither the
+	 * thread nor its task holds on to the Session.
+	 */
+	private static ScheduledExecutorService startEviction(MonitoredConnectionManager connectionManager, long interval, long maxIdleTime) {
+		ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "couchdb4j-evictor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		evictor.scheduleWithFixedDelay(new Evictor(connectionManager, evictor, maxIdleTime), interval, interval, TimeUnit.MILLISECONDS);
+		return evictor;
+	}
+
+	/**
+	 * Closes expired and idle connections.  The connection manager is only held weakly: once a
+	 * Session that was never closed has been collected, the eviction thread stops itself.
+	 */
+	private static class Evictor implements Runnable {
+		private static final Log log = LogFactory.getLog(Evictor.class);
+
+		private final WeakReference<MonitoredConnectionManager> connectionManager;
+		private final ScheduledExecutorService evictor;
+		private final long maxIdleTime;
+
+		Evictor(MonitoredConnectionManager connectionManager, ScheduledExecutorService evictor, long maxIdleTime) {
+			this.connectionManager = new WeakReference<MonitoredConnectionManager>(connectionManager);
+			this.evictor = evictor;
+			this.maxIdleTime = maxIdleTime;
+		}
+
+		public void run() {
+			MonitoredConnectionManager manager = connectionManager.get();
+			if (manager == null) {
+				evictor.shutdown();
+				return;
+			}
+			try {
+				manager.closeExpiredConnections();
+				if (maxIdleTime > 0) {
+					manager.closeIdleConnections(maxIdleTime, TimeUnit.MILLISECONDS);
+				}
+			} catch (RuntimeException e) {
+				log.warn("Error closing idle connections", e);
+			}
+		}
 	}
 
 	/**
@@ -193,6 +394,18 @@ public class Session {
 		return dbs;	
 	}
 	
+	/**
+	 * Retrieves a list of all database names from the server without blocking the caller.
+	 * @return a Future for the list of database names
+	 */
+	public Future<List<String>> getDatabaseNamesAsync() {
+		return submit(new Callable<List<String>>() {
+			public List<String> call() {
+				return getDatabaseNames();
+			}
+		});
+	}
+
 	/**
 	 * Loads a database instance from the server
 	 * @param name
@@ -208,6 +421,19 @@ public class Session {
 		return null;
 	}
 	
+	/**
+	 * Loads a database instance from the server without blocking the caller.
+	 * @param name
+	 * @return a Future for the database (the value is null if it doesn't exist)
+	 */
+	public Future<Database> getDatabaseAsync(final String name) {
+		return submit(new Callable<Database>() {
+			public Database call() {
+				return getDatabase(name);
+			}
+		});
+	}
+
 	/**
 	 * Creates a new database (if the name doesn't already exist)
 	 * @param name
@@ -350,6 +576,31 @@ public class Session {
 		return http(post);
 	}
 	
+	/**
+	 * Send a POST with a JSON body (written by the codec) and query string
+	 * @param url
+	 * @param json
+	 * @param queryString
+	 * @return
+	 */
+	CouchResponse postJSON(String url, Object json, String queryString) {
+		return http(jsonPost(url, json, queryString));
+	}
+
+	/**
+	 * Builds (but doesn't send) a POST request with a JSON body
+	 * @param url
+	 * @param json
+	 * @param queryString
+	 * @return
+	 */
+	HttpPost jsonPost(String url, Object json, String queryString) {
+		HttpPost post = new HttpPost(buildUrl(url, queryString));
+		post.setEntity(jsonEntity(json));
+		post.setHeader(new BasicHeader("Content-Type", MIME_TYPE_JSON));
+		return post;
+	}
+
 	/**
 	 * Send a PUT  (for creating databases)
 	 * @param url
@@ -379,6 +630,53 @@ public class Session {
 		return http(put);
 	}
 	
+	/**
+	 * Send a PUT with a JSON body (written by the codec)
+	 * @param url
+	 * @param json
+	 * @return
+	 */
+	CouchResponse putJSON(String url, Object json) {
+		HttpPut put = new HttpPut(buildUrl(url));
+		put.setEntity(jsonEntity(json));
+		put.setHeader(new BasicHeader("Content-Type", MIME_TYPE_JSON));
+		return http(put);
+	}
+
+	/**
+	 * Builds a JSON request body.  Small bodies are encoded up front and sent with a Content-Length;
+	 * anything bigger is written by the codec straight to the connection while the request is sent,
+	 * so a large bulk save is never held in memory as a whole.  Which one a body is gets decided from
+	 * a quick estimate of its length, so it is only ever encoded once.
+	 * @param json
+	 * @return
+	 */
+	HttpEntity jsonEntity(Object json) {
+		int threshold = gzipThreshold;
+		if (json instanceof JSONEntity.Raw) {
+			// already encoded, so there's nothing to gain from buffering it
+			JSONEntity.Raw raw = (JSONEntity.Raw) json;
+			if (raw.parts.length == 1 && (threshold < 0 || raw.length() < threshold)) {
+				return new ByteArrayEntity(raw.parts[0]);
+			}
+			return new JSONEntity(raw, codec, threshold >= 0 && raw.length() >= threshold);
+		}
+		long estimate = JSONWriter.estimateLength(json, Math.max(threshold, STREAM_THRESHOLD));
+		if (estimate >= STREAM_THRESHOLD) {
+			return new JSONEntity(json, codec, threshold >= 0 && estimate >= threshold);
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) estimate + 64);
+		try {
+			JSONEntity.write(json, codec, bytes);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		if (threshold >= 0 && bytes.size() >= threshold) {
+			return new JSONEntity(new JSONEntity.Raw(bytes.toByteArray()), codec, true);
+		}
+		return new ByteArrayEntity(bytes.toByteArray());
+	}
+
 	/**
 	 * Overloaded Put using by attachments
 	 */
@@ -430,7 +728,7 @@ public class Session {
 	 */
 	CouchResponse get(String url) {
 		HttpGet get = new HttpGet(buildUrl(url));
-		return http(get);
+		return read(get);
 	}
 	/**
 	 * Send a GET request with a number of name/value pairs as a query string
@@ -440,7 +738,7 @@ public class Session {
 	 */
 	CouchResponse get(String url, NameValuePair[] queryParams) {
 		HttpGet get = new HttpGet(buildUrl(url, queryParams));
-		return http(get);
+		return read(get);
 	}
 	
 	/**
@@ -451,15 +749,209 @@ public class Session {
 	 */
 	CouchResponse get(String url, String queryString) {
 		HttpGet get = new HttpGet(buildUrl(url, queryString));
-		return http(get);
+		return read(get);
 	}
 	
+	/**
+	 * Send a conditional GET request.  If an etag is given it's sent as If-None-Match, and the
+	 * server answers 304 (with no body) if it still matches.
+	 * @param url
+	 * @param etag
+	 * @return
+	 */
+	CouchResponse getIfNoneMatch(String url, String etag) {
+		HttpGet get = new HttpGet(buildUrl(url));
+		if (etag != null) {
+			get.setHeader(new BasicHeader("If-None-Match", etag));
+		}
+		return read(get);
+	}
+
+	/**
+	 * Sends a GET, hedged if there are other nodes to hedge with: the GET is sent from the calling
+	 * thread, and if it hasn't answered within the hedge delay, a second attempt is sent to another
+	 * node from the executor.  No thread waits for the delay, the second attempt is scheduled and
+	 * cancelled if the GET answers in time.  Whichever answers first is used (the other is aborted
+	 * if it hasn't been answered yet).
+	 * @param get
+	 * @return
+	 */
+	private CouchResponse read(HttpGet get) {
+		List<String> nodes = hedgeNodes;
+		if (nodes.isEmpty() || cookieAuth) {
+			return http(get);
+		}
+		long start = System.nanoTime();
+		long delay = hedgeDelay();
+		if (delay < 0) {
+			// not enough latencies to know what's slow yet
+			CouchResponse resp = http(get);
+			readLatency.record((System.nanoTime() - start) / 1000000);
+			hedgeStats.record(false, false);
+			return resp;
+		}
+		// copied before send() adds its own headers (and a ClusterSession moves it to its node)
+		Header[] headers = get.getAllHeaders();
+		String path = get.getURI().toString().substring(buildUrl("").length());
+		String node = nodes.get((nextHedgeNode.getAndIncrement() & Integer.MAX_VALUE) % nodes.size());
+		Hedge hedge = new Hedge(new Attempt(get), new Attempt(new HttpGet(node + path)));
+		hedge.request.request.setHeaders(headers);
+		hedge.request.request.getParams().setBooleanParameter(HEDGE_PARAM, true);
+		ScheduledFuture<?> timer = getHedger().schedule(hedge, delay, TimeUnit.MILLISECONDS);
+
+		CouchResponse resp = http(get);
+		long latency = (System.nanoTime() - start) / 1000000;
+		timer.cancel(false);
+		boolean sent = !hedge.state.compareAndSet(Hedge.WAITING, Hedge.PRIMARY);
+		boolean hedgeWon = false;
+		if (sent && resp.getStatusCode() != 0 && hedge.state.compareAndSet(Hedge.SENT, Hedge.PRIMARY)) {
+			// the hedge finishes with a status 0 response nobody reads (unless it has been answered),
+			// or isn't sent at all if it is still waiting for an executor thread
+			hedge.attempt.cancel(false);
+			hedge.request.abort();
+		} else if (sent) {
+			// the hedge answered first (this was aborted, or answered too late), or this couldn't
+			// reach its node; either way, the hedge's answer is the one to use if it has one
+			try {
+				// sends the hedge from this thread if no executor thread has picked it up
+				hedge.attempt.run();
+				CouchResponse other = hedge.attempt.get();
+				if (hedge.state.get() == Hedge.HEDGE) {
+					resp = other;
+					hedgeWon = true;
+					latency = hedge.latency;
+				}
+			} catch (InterruptedException e) {
+				hedge.request.abort();
+				Thread.currentThread().interrupt();
+				return new CouchResponse(get, new IOException("interrupted"));
+			} catch (ExecutionException e) {
+				// http() handles IOExceptions itself
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new RuntimeException(e.getCause());
+			}
+		}
+		// the latency of the answer used: an aborted primary's would only say how long the hedge took
+		readLatency.record(latency);
+		hedgeStats.record(sent, hedgeWon);
+		lastResponse.set(resp);
+		return resp;
+	}
+
+	/**
+	 * The thread that sends the second attempts of hedged reads once their delay is up (it only
+	 * hands them to the executor), created on first use
+	 */
+	private synchronized ScheduledExecutorService getHedger() {
+		if (hedger == null) {
+			hedger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "couchdb4j-hedger");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return hedger;
+	}
+
+	/**
+	 * The hedge delay: the hedge percentile of recent read latencies, but at least
+	 * MIN_HEDGE_DELAY
+	 * @return the delay in milliseconds, or -1 if there aren't enough latencies recorded yet
+	 */
+	private long hedgeDelay() {
+		long delay = readLatency.percentile(hedgePercentile);
+		return (delay < 0) ? -1 : Math.max(delay, MIN_HEDGE_DELAY);
+	}
+
+	/**
+	 * One attempt of a hedged read.  It is only aborted until its response has arrived: from then
+	 * on the client may hand its connection back to the pool at any moment, and an abort racing
+	 * with that would shut down the connection under the next request to use it.
+	 */
+	private static class Attempt {
+		final HttpGet request;
+		private boolean answered = false;
+
+		Attempt(HttpGet request) {
+			this.request = request;
+			request.getParams().setParameter(ATTEMPT_PARAM, this);
+		}
+
+		synchronized void answered() {
+			answered = true;
+		}
+
+		synchronized void abort() {
+			if (!answered) {
+				request.abort();
+			}
+		}
+	}
+
+	/**
+	 * The second attempt of a hedged read, scheduled for when the hedge delay is up.  If the
+	 * primary hasn't answered by then, it sends its request from the executor, and if it gets an
+	 * answer first, it aborts the primary.
+	 */
+	private class Hedge implements Runnable {
+		static final int WAITING = 0;
+		static final int SENT = 1;
+		static final int PRIMARY = 2;
+		static final int HEDGE = 3;
+
+		final Attempt primary;
+		final Attempt request;
+		/** WAITING until the hedge is sent, then whichever attempt's answer is used */
+		final AtomicInteger state = new AtomicInteger(WAITING);
+		/** sends the request, on an executor thread or the primary's */
+		final FutureTask<CouchResponse> attempt;
+		/** milliseconds from sending the request to its answer */
+		volatile long latency;
+
+		Hedge(Attempt primary, Attempt request) {
+			this.primary = primary;
+			this.request = request;
+			this.attempt = new FutureTask<CouchResponse>(new Callable<CouchResponse>() {
+				public CouchResponse call() {
+					return send();
+				}
+			});
+		}
+
+		public void run() {
+			if (!state.compareAndSet(WAITING, SENT)) {
+				// the primary has answered
+				return;
+			}
+			try {
+				getExecutor().execute(attempt);
+			} catch (RejectedExecutionException e) {
+				// left for the primary's thread to run
+			}
+		}
+
+		private CouchResponse send() {
+			long start = System.nanoTime();
+			CouchResponse resp = http(request.request);
+			latency = (System.nanoTime() - start) / 1000000;
+			if (resp.getStatusCode() != 0 && state.compareAndSet(SENT, HEDGE)) {
+				primary.abort();
+			}
+			return resp;
+		}
+	}
+
 	/**
 	 * Method that actually performs the GET/PUT/POST/DELETE calls.
 	 * Executes the given HttpMethod on the HttpClient object (one HttpClient per Session).
 	 * <p>
 	 * This returns a CouchResponse, which can be used to get the status of the call (isOk), 
-	 * and any headers / body that was sent back.
+	 * and any headers / body that was sent back.  If the request couldn't be sent or its response
+	 * read, the CouchResponse has a status of 0 and the exception as its error.
 	 * 
 	 * @param req
 	 * @return the CouchResponse (status / error / json document)
@@ -468,37 +960,384 @@ public class Session {
 
 		HttpResponse httpResponse = null;
 		HttpEntity entity = null;
+		CouchResponse response;
 		
 		try {
-			if (usesAuth) {
-				req.getParams().setBooleanParameter(ClientPNames.HANDLE_AUTHENTICATION, true);
-			}
-			httpResponse = httpClient.execute(req);
+			httpResponse = execute(req);
 			entity = httpResponse.getEntity();
-			lastResponse = new CouchResponse(req, httpResponse);
+			response = new CouchResponse(req, httpResponse, codec);
+			compressionStats.record(response);
 		} catch (IOException e) {
-			log.error(ExceptionUtils.getStackTrace(e));
+			if (req.isAborted()) {
+				// a hedged read's losing attempt
+				log.debug("aborted " + req.getURI());
+			} else {
+				log.error(ExceptionUtils.getStackTrace(e));
+			}
+			response = new CouchResponse(req, e);
 		} finally {
 			  if (entity != null) {
 				try {
 					entity.consumeContent();
 				} catch (IOException e) {
-					throw new RuntimeException(e);
+					// a hedged read's losing attempt may be aborted while it is being read
+					if (!req.isAborted()) {
+						throw new RuntimeException(e);
+					}
 				}
 			  }
 		}
-		return lastResponse;	
+		lastResponse.set(response);
+		return response;
+	}
+
+	/**
+	 * Package level access to execute a request without reading the response body.
+	 * The caller is responsible for consuming the entity (or aborting the request), otherwise
+	 * the connection is never returned to the pool.
+	 * @param req
+	 * @return the raw HttpResponse
+	 * @throws IOException
+	 */
+	HttpResponse stream(HttpRequestBase req) throws IOException {
+		return execute(req);
+	}
+
+	/**
+	 * Sends the request to the server.  Both http() and stream() go through here.
+	 * @param req
+	 * @return the response, with the body still unread
+	 * @throws IOException
+	 */
+	protected HttpResponse execute(HttpRequestBase req) throws IOException {
+		HttpResponse response = send(req);
+		HttpEntity entity = response.getEntity();
+		if (entity != null && entity.getContentLength() != 0 && entity.getContentEncoding() != null
+				&& "gzip".equalsIgnoreCase(entity.getContentEncoding().getValue())) {
+			response.setEntity(new GzipResponseEntity(entity));
+		}
+		return response;
+	}
+
+	/**
+	 * Sends the request, with the Session's headers and credentials, and returns the response as
+	 * it was received (before execute() decompresses the body).
+	 * @param req
+	 * @return the response, with the body still unread
+	 * @throws IOException
+	 */
+	protected HttpResponse send(HttpRequestBase req) throws IOException {
+		if (acceptGzip && !req.containsHeader("Accept-Encoding")) {
+			req.setHeader("Accept-Encoding", "gzip");
+		}
+		HttpResponse response;
+		if (cookieAuth) {
+			response = executeWithSession(req);
+		}
+		else {
+			if (basicAuthorization != null) {
+				// sent up front, rather than waiting for a 401 challenge and sending the request again
+				req.setHeader("Authorization", basicAuthorization);
+			}
+			if (usesAuth) {
+				req.getParams().setBooleanParameter(ClientPNames.HANDLE_AUTHENTICATION, true);
+			}
+			response = httpClient.execute(req);
+		}
+		return response;
+	}
+
+	private static String basicAuthorization(String user, String pass) {
+		try {
+			byte[] credentials = (user + ":" + (pass == null ? "" : pass)).getBytes(DEFAULT_CHARSET);
+			return "Basic " + new String(Base64.encodeBase64(credentials), "US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Sends a request with the AuthSession cookie, logging in first if there is no session yet
+	 * (or it is about to expire).  If the server still answers 401 (the session was dropped on the
+	 * server side), the request is sent once more after logging in again.
+	 */
+	private HttpResponse executeWithSession(HttpRequestBase req) throws IOException {
+		long started = ensureSession();
+		req.getParams().setParameter(ClientPNames.COOKIE_POLICY, CookiePolicy.BROWSER_COMPATIBILITY);
+		HttpResponse response = httpClient.execute(req);
+		if (response.getStatusLine().getStatusCode() == 401 && isRepeatable(req)) {
+			if (response.getEntity() != null) {
+				response.getEntity().consumeContent();
+			}
+			synchronized (sessionLock) {
+				if (sessionStarted == started) {
+					sessionStarted = 0;
+				}
+			}
+			ensureSession();
+			response = httpClient.execute(req);
+		}
+		if (hasSessionCookie(response)) {
+			// CouchDB sends a fresh cookie once the current one is getting old
+			sessionStarted = System.currentTimeMillis();
+		}
+		return response;
+	}
+
+	private static boolean isRepeatable(HttpRequestBase req) {
+		if (req instanceof HttpEntityEnclosingRequest) {
+			HttpEntity entity = ((HttpEntityEnclosingRequest) req).getEntity();
+			return entity == null || entity.isRepeatable();
+		}
+		return true;
+	}
+
+	private static boolean hasSessionCookie(HttpResponse response) {
+		for (Header h : response.getHeaders("Set-Cookie")) {
+			if (h.getValue().startsWith("AuthSession=")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Logs in with POST /_session unless there is a session that isn't due for a refresh.  All
+	 * threads share the one session; only one of them logs in.  The cookie itself is kept (and
+	 * sent) by the HttpClient's cookie store.
+	 * @return when the current session was started
+	 * @throws IOException
+	 */
+	private long ensureSession() throws IOException {
+		synchronized (sessionLock) {
+			long now = System.currentTimeMillis();
+			if (sessionStarted != 0 && now - sessionStarted < sessionRefreshInterval) {
+				return sessionStarted;
+			}
+			HttpPost post = new HttpPost(buildUrl("_session"));
+			StringEntity form = new StringEntity("name=" + encodeParameter(user) + "&password=" + encodeParameter(pass), DEFAULT_CHARSET);
+			form.setContentType("application/x-www-form-urlencoded");
+			post.setEntity(form);
+			// a plain "AuthSession=..." cookie, rather than the quoted RFC 2109 form
+			post.getParams().setParameter(ClientPNames.COOKIE_POLICY, CookiePolicy.BROWSER_COMPATIBILITY);
+			HttpResponse response = httpClient.execute(post);
+			CouchResponse resp = new CouchResponse(post, response, codec);
+			if (resp.getStatusCode() != 200 || !hasSessionCookie(response)) {
+				JSONObject body = (resp.getBody() == null) ? null : resp.getBodyAsJSONObject();
+				throw new CouchException(body == null ? "unauthorized" : body.optString("error"),
+						body == null ? "no session cookie" : body.optString("reason"));
+			}
+			sessionStarted = now;
+			return now;
+		}
+	}
+
+	/**
+	 * Use a CouchDB cookie session (POST /_session) instead of sending the username and password
+	 * with every request.  The session is started on the first request and shared by all threads
+	 * using this Session.
+	 * @param cookieAuth
+	 * @see setSessionRefreshInterval(long)
+	 */
+	public void setCookieAuth(boolean cookieAuth) {
+		if (cookieAuth && user == null) {
+			throw new IllegalStateException("cookie authentication needs a username and password");
+		}
+		this.cookieAuth = cookieAuth;
+	}
+
+	/**
+	 * How long (in milliseconds) a cookie session is used before logging in again.  This should be
+	 * a bit shorter than the server's session timeout (couch_httpd_auth/timeout, 10 minutes by
+	 * default).  The default is 9 minutes.
+	 * @param sessionRefreshInterval
+	 */
+	public void setSessionRefreshInterval(long sessionRefreshInterval) {
+		this.sessionRefreshInterval = sessionRefreshInterval;
 	}
 
 	/**
-	 * Returns the last response for this given session
+	 * Returns the last response to a request made by the calling thread through this Session
 	 * - useful for debugging purposes
-	 * @return
+	 * @return the response, or null if this thread hasn't made a request
+	 * @deprecated each call gets its own CouchResponse (or CouchException), which is what to use
+	 *             instead.  This is only kept per thread so that existing callers still work.
 	 */
+	@Deprecated
 	public CouchResponse getLastResponse() {
-		return lastResponse;
+		return lastResponse.get();
 	}
-	
+
+	/**
+	 * The executor used to run the *Async methods of this Session and its Databases.
+	 * If none has been set, a fixed pool of daemon threads is created on first use, with a thread
+	 * per connection of the pool (ConnectionPoolConfig.getMaxTotal()): more threads would only
+	 * wait for a connection.  Tasks beyond that are queued.
+	 * @return
+	 */
+	public synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			ownsExecutor = true;
+			executor = Executors.newFixedThreadPool(executorThreads, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "couchdb4j-async-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * Sets the executor used to run the *Async methods.  Useful if you want a different bound on
+	 * the number of requests in flight, or share a pool with the rest of your application.  Changes
+	 * feeds don't use it, each one started in the background has a thread of its own.
+	 * @param executor
+	 */
+	public synchronized void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+		this.ownsExecutor = false;
+	}
+
+	/**
+	 * Should responses be requested gzip compressed ("Accept-Encoding: gzip")?  They are
+	 * decompressed as they are read.  The default is true.
+	 * @param acceptGzip
+	 */
+	public void setAcceptGzip(boolean acceptGzip) {
+		this.acceptGzip = acceptGzip;
+	}
+
+	/**
+	 * JSON request bodies (documents, _bulk_docs, view keys) of at least this many bytes are sent
+	 * gzip compressed.  A negative value (the default) never compresses them.
+	 * @param bytes
+	 * @see getCompressionStats()
+	 */
+	public void setGzipRequestThreshold(int bytes) {
+		this.gzipThreshold = bytes;
+	}
+
+	/**
+	 * The total size of the bodies sent and received by this Session, before and after
+	 * compression.  Each CouchResponse also has the sizes of its own request and response.
+	 * @return
+	 */
+	public CompressionStats getCompressionStats() {
+		return compressionStats.snapshot();
+	}
+
+	/**
+	 * Adds another node (a replica of the same databases) for hedged reads.  Once a node has been
+	 * added, the GETs for documents and views are hedged: if one hasn't answered within the hedge
+	 * percentile of recent read latencies, a second attempt is sent to one of these nodes (in turn),
+	 * and the first answer wins.  The node is reached with the same scheme and credentials as this
+	 * Session's host.  Reads aren't hedged with cookie authentication, whose session only belongs to
+	 * the host.  The second attempts run on the Session's executor.
+	 * @param host
+	 * @param port
+	 * @see setHedgePercentile()
+	 * @see getHedgeStats()
+	 */
+	public void addHedgeNode(String host, int port) {
+		hedgeNodes.add(((secure) ? "https" : "http") + "://" + host + ":" + port + "/");
+	}
+
+	/**
+	 * Which percentile of recent read latencies a read waits for before it is hedged.  The default,
+	 * 0.95, hedges about one read in twenty.
+	 * @param percentile (greater than 0, at most 1)
+	 */
+	public void setHedgePercentile(double percentile) {
+		if (percentile <= 0 || percentile > 1) {
+			throw new IllegalArgumentException("percentile must be greater than 0 and at most 1");
+		}
+		this.hedgePercentile = percentile;
+	}
+
+	/**
+	 * How many reads were hedged, and how many of those the other node answered first
+	 * @return
+	 * @see addHedgeNode()
+	 */
+	public HedgeStats getHedgeStats() {
+		return hedgeStats.snapshot(hedgeDelay());
+	}
+
+	/**
+	 * A snapshot of the connection pool: connections in use and available, requests waiting for a
+	 * connection, and how long they have waited.
+	 * @return
+	 */
+	public PoolStats getPoolStats() {
+		return connectionManager.getStats();
+	}
+
+	/**
+	 * Closes all connections and stops the Session's background threads (the eviction and hedging
+	 * threads, and the executor if the Session created it).  The Session can't be used afterwards.
+	 */
+	public synchronized void close() {
+		if (evictor != null) {
+			evictor.shutdownNow();
+			evictor = null;
+		}
+		if (hedger != null) {
+			hedger.shutdownNow();
+			hedger = null;
+		}
+		if (executor != null && ownsExecutor) {
+			executor.shutdown();
+			executor = null;
+		}
+		connectionManager.shutdown();
+	}
+
+	/**
+	 * Package level access to run a task on this Session's executor
+	 * @param task
+	 * @return
+	 */
+	<T> Future<T> submit(Callable<T> task) {
+		return getExecutor().submit(task);
+	}
+
+	/**
+	 * Package level access to start a task on this Session's executor that the caller then waits
+	 * for with Database.join().  A task no executor thread has picked up by then is run by the
+	 * caller itself, so waiting can't deadlock when the caller is a task on a bounded executor.
+	 * @param task
+	 * @return
+	 */
+	<T> FutureTask<T> fork(Callable<T> task) {
+		FutureTask<T> future = new FutureTask<T>(task);
+		try {
+			getExecutor().execute(future);
+		} catch (RejectedExecutionException e) {
+			// left for join() to run
+		}
+		return future;
+	}
+
+	/**
+	 * The codec used to read and write all JSON for this Session
+	 * @return
+	 */
+	public JSONCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Sets the codec used to read and write all JSON.  The default is a StreamingJSONCodec;
+	 * use a JSONLibCodec to go through json-lib for everything.
+	 * @param codec
+	 */
+	public void setCodec(JSONCodec codec) {
+		this.codec = codec;
+	}
+
 	public void setUserAgent(String ua)
 	{
 		httpParams.setParameter(AllClientPNames.USER_AGENT, ua);
@@ -575,7 +1414,7 @@ public class Session {
 			
 			log.trace(replicateReq.toString());
 			
-			CouchResponse resp = post("_replicate", replicateReq.toString());
+			CouchResponse resp = postJSON("_replicate", replicateReq, null);
 			
 			return (resp.getErrorId() == null);
 		} catch(Exception e) {
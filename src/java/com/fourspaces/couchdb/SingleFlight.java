@@ -0,0 +1,66 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent identical calls: while a call for a key is in flight, other threads asking
+ * for the same key wait for it and get its result instead of making their own.  Nothing is kept
+ * once the call completes, so a call that starts afterwards always runs again.
+ * <p>
+ * The call runs on the thread that asked first.
+ */
+class SingleFlight<K, V> {
+	private final ConcurrentMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<K, FutureTask<V>>();
+	private final AtomicLong shared = new AtomicLong();
+
+	/**
+	 * Runs the call, or waits for the one already in flight for the same key.
+	 * @param key
+	 * @param call
+	 * @return the result of the call
+	 * @throws IOException if the call threw one (every waiting thread gets it)
+	 */
+	V execute(K key, Callable<V> call) throws IOException {
+		FutureTask<V> task = new FutureTask<V>(call);
+		FutureTask<V> existing = inFlight.putIfAbsent(key, task);
+		if (existing != null) {
+			shared.incrementAndGet();
+			return Database.waitFor(existing);
+		}
+		try {
+			task.run();
+		} finally {
+			inFlight.remove(key, task);
+		}
+		return Database.waitFor(task);
+	}
+
+	/**
+	 * The number of callers that got the result of another thread's call
+	 * @return
+	 */
+	long getSharedCount() {
+		return shared.get();
+	}
+}
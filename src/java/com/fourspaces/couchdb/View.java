@@ -16,6 +16,13 @@
 
 package com.fourspaces.couchdb;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.URLEncoder;
+import java.util.Collection;
+
+import com.fourspaces.couchdb.util.JSONWriter;
+
 /**
  * The View is the mechanism for performing Querys on a CouchDB instance.
  * The view can be named or ad-hoc (see AdHocView). (Currently [14 Sept 2007] named view aren't working in the 
@@ -27,10 +34,14 @@ package com.fourspaces.couchdb;
  * @author mbreese
  *
  */
-public class View {
+public class View implements Cloneable {
 	protected String key;
+	protected Collection<?> keys;
 	protected String startKey;
+	protected String startKeyDocId;
 	protected String endKey;
+	protected String endKeyDocId;
+	protected Boolean inclusiveEnd;
 	protected Integer limit;
 	protected Boolean update;
 	protected Boolean reverse;
@@ -95,10 +106,22 @@ public class View {
 			if (!queryString.equals("")) { queryString+="&"; }
 			queryString+="startkey="+startKey;
 		}
+		if (startKeyDocId!=null) {
+			if (!queryString.equals("")) { queryString+="&"; }
+			queryString+="startkey_docid="+startKeyDocId;
+		}
 		if (endKey!=null) {
 			if (!queryString.equals("")) { queryString+="&"; }
 			queryString+="endkey="+endKey;
 		}
+		if (endKeyDocId!=null) {
+			if (!queryString.equals("")) { queryString+="&"; }
+			queryString+="endkey_docid="+endKeyDocId;
+		}
+		if (inclusiveEnd!=null && !inclusiveEnd.booleanValue()) {
+			if (!queryString.equals("")) { queryString+="&"; }
+			queryString+="inclusive_end=false";
+		}
 		if (skip!=null) {
 			if (!queryString.equals("")) { queryString+="&"; }
 			queryString+="skip="+skip;
@@ -141,6 +164,25 @@ public class View {
           this.key = key;
         }
 
+	/**
+	 * Only return the rows for these keys.  Unlike the other settings, the keys are plain values
+	 * (a String, Number, JSONArray, etc) -- they are sent as JSON in the body of a POST rather than
+	 * in the query string.  The rows come back in the order of the keys.
+	 * @param keys
+	 * @see Database#setBulkFetchSize(int)
+	 */
+	public void setKeys(Collection<?> keys) {
+		this.keys = keys;
+	}
+
+	/**
+	 * The keys set with setKeys(), or null
+	 * @return
+	 */
+	public Collection<?> getKeys() {
+		return keys;
+	}
+
         public void setLimit(Integer limit) {
           this.limit = limit;
         }
@@ -156,6 +198,21 @@ public class View {
 	public void setEndKey(String endKey) {
 		this.endKey = endKey;
 	}
+	/**
+	 * Stop listing at this document id (among the rows with the end key).  This is added to the
+	 * query string as is, so it must already be URL encoded.
+	 * @param endKeyDocId
+	 */
+	public void setEndKeyDocId(String endKeyDocId) {
+		this.endKeyDocId = endKeyDocId;
+	}
+	/**
+	 * Should the rows matching the end key be included?  (the default is true)
+	 * @param inclusiveEnd
+	 */
+	public void setInclusiveEnd(Boolean inclusiveEnd) {
+		this.inclusiveEnd = inclusiveEnd;
+	}
 	/**
 	 * Reverse the listing
 	 * @param reverse
@@ -182,6 +239,14 @@ public class View {
 	public void setStartKey(String startKey) {
 		this.startKey = startKey;
 	}
+	/**
+	 * Start listing at this document id (among the rows with the start key).  Like the keys,
+	 * this is added to the query string as is, so it must already be URL encoded.
+	 * @param startKeyDocId
+	 */
+	public void setStartKeyDocId(String startKeyDocId) {
+		this.startKeyDocId = startKeyDocId;
+	}
 	/**
 	 * Not sure... might be for batch updates, but not sure.
 	 * @param update
@@ -221,4 +286,28 @@ public class View {
 		return function;
 	}
 	
+	/**
+	 * A copy of this view with the same settings (used to page through a view without changing it)
+	 * @return
+	 */
+	View copy() {
+		try {
+			return (View) clone();
+		} catch (CloneNotSupportedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Encodes a key (a String, Number, JSONArray, etc) as JSON for use in the query string
+	 * @param key
+	 * @return the URL encoded JSON
+	 * @throws IOException
+	 */
+	static String encodeKey(Object key) throws IOException {
+		StringWriter out = new StringWriter();
+		new JSONWriter(out).write(key);
+		return URLEncoder.encode(out.toString(), "utf-8");
+	}
+	
 }
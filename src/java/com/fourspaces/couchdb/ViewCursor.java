@@ -0,0 +1,202 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import net.sf.json.JSONObject;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+
+import com.fourspaces.couchdb.util.JSONReader;
+
+/**
+ * A ViewCursor walks the rows of a view as they arrive from the server.  Unlike ViewResults,
+ * the response is never held in memory as a whole -- each row is parsed from the socket when
+ * next() is called, so memory use stays flat no matter how large the view is.
+ * <p>
+ * The cursor holds an open HTTP connection until the last row has been read, so it must be
+ * closed if you stop iterating early.
+ * <p>
+ * Ex usage: <br>
+ * ViewCursor cursor = db.streamAllDocuments();
+ * try {
+ *   while (cursor.hasNext()) { Document d = cursor.next(); ... }
+ * } finally {
+ *   cursor.close();
+ * }
+ */
+public class ViewCursor implements Iterator<Document>, Closeable {
+	Log log = LogFactory.getLog(ViewCursor.class);
+
+	private final View calledView;
+	private final Database database;
+	private final HttpRequestBase request;
+	private final HttpEntity entity;
+	private final JSONReader reader;
+
+	private int totalRows = -1;
+	private int offset = -1;
+
+	private Document next = null;
+	private boolean done = false;
+
+	/**
+	 * Reads the response up to the start of the "rows" array.  (called only from Database.streamView())
+	 * @param calledView
+	 * @param database
+	 * @param request
+	 * @param response
+	 * @throws IOException
+	 */
+	ViewCursor(View calledView, Database database, HttpRequestBase request, HttpResponse response) throws IOException {
+		this.calledView = calledView;
+		this.database = database;
+		this.request = request;
+		this.entity = response.getEntity();
+		this.reader = new JSONReader(entity.getContent());
+
+		reader.expect('{');
+		while (reader.peek() != '}') {
+			if (readField()) {
+				return;
+			}
+			reader.skip(',');
+		}
+		// no rows at all
+		reader.expect('}');
+		finish();
+	}
+
+	/**
+	 * Reads one top level field.
+	 * @return true if the field was "rows" (the reader is left at the first row)
+	 */
+	private boolean readField() throws IOException {
+		String key = reader.readString();
+		reader.expect(':');
+		if (key.equals("rows")) {
+			reader.expect('[');
+			return true;
+		} else if (key.equals("total_rows")) {
+			totalRows = ((Number) reader.readValue()).intValue();
+		} else if (key.equals("offset")) {
+			offset = ((Number) reader.readValue()).intValue();
+		} else {
+			reader.skipValue();
+		}
+		return false;
+	}
+
+	private Document advance() throws IOException {
+		while (true) {
+			reader.skip(',');
+			if (reader.skip(']')) {
+				// fields after the rows (newer CouchDB versions put some here)
+				while (reader.skip(',')) {
+					readField();
+				}
+				reader.expect('}');
+				finish();
+				return null;
+			}
+			Object row = reader.readValue();
+			if (row instanceof JSONObject) {
+				Document d = new Document((JSONObject) row);
+				d.setDatabase(database);
+				return d;
+			}
+		}
+	}
+
+	private void finish() throws IOException {
+		done = true;
+		entity.consumeContent();
+	}
+
+	public boolean hasNext() {
+		if (next == null && !done) {
+			try {
+				next = advance();
+			} catch (IOException e) {
+				close();
+				throw new RuntimeException("error reading view rows", e);
+			}
+		}
+		return next != null;
+	}
+
+	/**
+	 * The next row of the view.  Like the Documents from ViewResults.getResults(), this only
+	 * contains what the view returned (not the full document).
+	 */
+	public Document next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		Document d = next;
+		next = null;
+		return d;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Releases the connection.  If there are unread rows, the request is aborted rather
+	 * than reading the rest of the response.
+	 */
+	public void close() {
+		if (!done) {
+			done = true;
+			next = null;
+			request.abort();
+		}
+	}
+
+	/**
+	 * The total number of rows in the view (if the server sent it before the rows)
+	 * @return the row count, or -1 if it isn't known
+	 */
+	public int getTotalRows() {
+		return totalRows;
+	}
+
+	/**
+	 * The offset of the first row (if the server sent it before the rows)
+	 * @return the offset, or -1 if it isn't known
+	 */
+	public int getOffset() {
+		return offset;
+	}
+
+	/**
+	 * The view that created this cursor.
+	 * @return
+	 */
+	public View getView() {
+		return calledView;
+	}
+}
@@ -0,0 +1,210 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import net.sf.json.JSONObject;
+
+/**
+ * A ViewPager walks a view one page at a time.  Instead of skipping over the rows that were
+ * already read (which makes the server walk the index from the start for every page), each page
+ * starts at the key and document id of the row after the last one returned: every page is
+ * requested with limit=pageSize+1, and the extra row is where the next page starts.
+ * <p>
+ * While the rows of one page are being read, the next page is fetched in the background on the
+ * Session's executor.
+ * <p>
+ * The view's own startkey, descending and other settings are kept; a limit is treated as the
+ * total number of rows to return, and a skip only applies to the first page.  Paging relies on
+ * the document id of each row, so it works with map views (and _all_docs) but not with reduced
+ * or grouped views.
+ * <p>
+ * Ex usage: <br>
+ * ViewPager pager = db.pageView(view, 1000);
+ * try {
+ *   while (pager.hasNext()) { Document d = pager.next(); ... }
+ * } finally {
+ *   pager.close();
+ * }
+ *
+ * @see Database#pageView(View, int)
+ */
+public class ViewPager implements Iterator<Document>, Closeable {
+	private final Database database;
+	private final View view;
+	private final int pageSize;
+
+	private Integer remaining;
+	private List<Document> page = null;
+	private int index = 0;
+	private Future<ViewResults> nextPage = null;
+	private int pageCount = 0;
+
+	/**
+	 * Starts fetching the first page.  (called only from Database.pageView())
+	 * @param database
+	 * @param view
+	 * @param pageSize
+	 */
+	ViewPager(Database database, View view, int pageSize) {
+		if (pageSize < 1) {
+			throw new IllegalArgumentException("pageSize must be at least 1");
+		}
+		this.database = database;
+		this.view = view;
+		this.pageSize = pageSize;
+		this.remaining = view.limit;
+
+		View first = view.copy();
+		first.setLimit(pageSize + 1);
+		nextPage = fetch(first);
+	}
+
+	private Future<ViewResults> fetch(final View pageView) {
+		return database.getSession().submit(new Callable<ViewResults>() {
+			public ViewResults call() {
+				return database.view(pageView);
+			}
+		});
+	}
+
+	/**
+	 * Waits for the page that is being fetched and starts fetching the one after it.
+	 * @return false if there are no more rows
+	 */
+	private boolean advance() {
+		if (nextPage == null) {
+			return false;
+		}
+		ViewResults results;
+		try {
+			results = nextPage.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted while fetching a view page", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("error fetching a view page", e.getCause());
+		}
+		nextPage = null;
+		if (results == null) {
+			throw new RuntimeException("error fetching a view page from " + view.getFullName());
+		}
+		pageCount++;
+
+		List<Document> rows = results.getResults();
+		if (rows.size() > pageSize) {
+			Document start = rows.get(pageSize);
+			rows = rows.subList(0, pageSize);
+			if (remaining == null || remaining.intValue() > pageSize) {
+				nextPage = fetch(nextView(start));
+			}
+		}
+		if (remaining != null) {
+			if (rows.size() > remaining.intValue()) {
+				rows = rows.subList(0, remaining.intValue());
+			}
+			remaining = Integer.valueOf(remaining.intValue() - rows.size());
+		}
+		page = rows;
+		index = 0;
+		return !page.isEmpty();
+	}
+
+	/**
+	 * The view for the page starting at the given row
+	 */
+	private View nextView(Document start) {
+		View next = view.copy();
+		JSONObject row = start.getJSONObject();
+		try {
+			next.setStartKey(View.encodeKey(row.get("key")));
+			next.setStartKeyDocId(URLEncoder.encode(row.getString("id"), "utf-8"));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		next.setSkip(null);
+		next.setLimit(pageSize + 1);
+		return next;
+	}
+
+	public boolean hasNext() {
+		while (page == null || index >= page.size()) {
+			if (!advance()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The next row of the view
+	 */
+	public Document next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return page.get(index++);
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Stops paging.  A page that is still being fetched is cancelled.
+	 */
+	public void close() {
+		if (nextPage != null) {
+			nextPage.cancel(false);
+			nextPage = null;
+		}
+		page = null;
+	}
+
+	/**
+	 * The number of rows per page
+	 * @return
+	 */
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * The number of pages read so far
+	 * @return
+	 */
+	public int getPageCount() {
+		return pageCount;
+	}
+
+	/**
+	 * The view being paged through
+	 * @return
+	 */
+	public View getView() {
+		return view;
+	}
+}
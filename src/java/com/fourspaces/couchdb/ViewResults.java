@@ -16,12 +16,16 @@
 
 package com.fourspaces.couchdb;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -42,6 +46,7 @@ import org.apache.commons.logging.LogFactory;
 public class ViewResults extends Document {
 	Log log = LogFactory.getLog(ViewResults.class);
 	private View calledView;
+	private int batchLoadSize = 100;
 
 	/**
 	 * Builds the ViewResults object from the given JSON object. (called only from Database.view())
@@ -58,25 +63,107 @@ public class ViewResults extends Document {
 	 * Retrieves a list of documents that matched this View.
 	 * These documents only contain the data that the View has returned (not the full document).
 	 * <p>
-	 * You can load the remaining information from Document.reload();
+	 * You can load the remaining information from Document.refresh().  Refreshing one of these
+	 * documents loads it together with the following unloaded documents in the list (up to
+	 * batchLoadSize of them) in a single request, so refreshing every document in the list costs
+	 * one request per batch rather than one per document.
 	 * 
 	 * @return
+	 * @see setBatchLoadSize(int)
 	 */
 	public List<Document> getResults() {
 		JSONArray ar = getJSONObject().getJSONArray("rows");
 		List<Document> docs = new ArrayList<Document>(ar.size());
 		for (int i=0 ; i< ar.size(); i++) {
-			log.info(ar.getString(i));
-			if (ar.get(i)!=null && !ar.getString(i).equals("null")) {
-				Document d = new Document(ar.getJSONObject(i));
+			Object row = ar.get(i);
+			if (log.isDebugEnabled()) {
+				log.debug(row);
+			}
+			if (row instanceof JSONObject && !((JSONObject) row).isNullObject()) {
+				Document d = new Document((JSONObject) row);
 				d.setDatabase(database);
 				docs.add(d);
 			}
 		}
+		if (database != null) {
+			new BatchLoader(docs, batchLoadSize);
+		}
 		return docs;	
 
 	}
 
+	/**
+	 * The number of documents loaded in one request when a document from getResults() is refreshed.
+	 * The default is 100.
+	 * @param batchLoadSize
+	 */
+	public void setBatchLoadSize(int batchLoadSize) {
+		if (batchLoadSize < 1) {
+			throw new IllegalArgumentException("batchLoadSize must be at least 1");
+		}
+		this.batchLoadSize = batchLoadSize;
+	}
+
+	/**
+	 * Keeps track of which documents from one getResults() call haven't been loaded yet, and
+	 * loads them in batches with Database.getDocuments().
+	 */
+	static class BatchLoader {
+		private final List<Document> docs;
+		private final int batchSize;
+		private final boolean[] loaded;
+		private final Map<Document, Integer> positions = new IdentityHashMap<Document, Integer>();
+
+		BatchLoader(List<Document> docs, int batchSize) {
+			this.docs = docs;
+			this.batchSize = batchSize;
+			this.loaded = new boolean[docs.size()];
+			for (int i = 0; i < docs.size(); i++) {
+				Document d = docs.get(i);
+				if (StringUtils.isNotBlank(d.getId())) {
+					d.batchLoader = this;
+					positions.put(d, Integer.valueOf(i));
+				}
+			}
+		}
+
+		/**
+		 * Loads the given document and the unloaded documents after it.  A document that was already
+		 * loaded as part of an earlier batch is left as it is.
+		 * @param doc
+		 * @return false if the document isn't tracked by this loader
+		 * @throws IOException
+		 */
+		synchronized boolean load(Document doc) throws IOException {
+			Integer position = positions.get(doc);
+			if (position == null) {
+				return false;
+			}
+			if (loaded[position.intValue()]) {
+				return true;
+			}
+			List<Document> batch = new ArrayList<Document>(batchSize);
+			List<String> ids = new ArrayList<String>(batchSize);
+			for (int i = position.intValue(); i < docs.size() && batch.size() < batchSize; i++) {
+				if (!loaded[i] && positions.containsKey(docs.get(i))) {
+					batch.add(docs.get(i));
+					ids.add(docs.get(i).getId());
+				}
+			}
+			List<Document> full = doc.database.getDocuments(ids);
+			for (int i = 0; i < batch.size(); i++) {
+				Document d = batch.get(i);
+				loaded[positions.get(d).intValue()] = true;
+				if (full.get(i) != null) {
+					d.merge(full.get(i).getJSONObject());
+				}
+				// later refreshes go to the server as usual
+				d.batchLoader = null;
+			}
+			return true;
+		}
+	}
+
 	/**
 	 * The new that created this results list.
 	 * @return
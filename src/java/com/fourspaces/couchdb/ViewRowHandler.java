@@ -0,0 +1,33 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb;
+
+/**
+ * Receives the rows of a ViewScan.
+ *
+ * @see ViewScan#run(ViewRowHandler)
+ */
+public interface ViewRowHandler {
+
+	/**
+	 * Called for every row of the view.  The key ranges of a scan are read concurrently, so this
+	 * is called from several threads at once; rows from the same range arrive in key order.  An
+	 * exception thrown from here stops the scan and is rethrown by ViewScan.run().
+	 * @param row
+	 */
+	void onRow(Document row);
+}
@@ -0,0 +1,286 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.sf.json.JSONObject;
+
+/**
+ * A ViewScan reads a whole view by splitting it into key ranges and reading the ranges
+ * concurrently, one request per range.
+ * <p>
+ * The split points are either given with setSplitKeys(), or sampled from the view: the number of
+ * rows is read first, then the row at every (rows / partitions)th position is fetched and used as a
+ * boundary together with its document id, so even a long run of rows with the same key can be
+ * split.  Each range is requested with startkey/startkey_docid and endkey/endkey_docid
+ * with inclusive_end=false, so every row is read exactly once.
+ * <p>
+ * The view's own startkey, endkey and descending settings are kept.  Limit and skip are ignored.
+ * Sampling relies on the document id of each row, so it works with map views (and _all_docs)
+ * but not with reduced or grouped views.
+ * <p>
+ * The ranges run on the Session's executor (the ones no executor thread is free for run on the
+ * calling thread), and each one holds a connection while it is read, so the connection pool
+ * limits how many actually run at the same time.
+ * <p>
+ * Ex usage: <br>
+ * ViewScan scan = db.createViewScan(view);
+ * scan.setPartitions(16);
+ * scan.run(new ViewRowHandler() { public void onRow(Document row) { ... } });
+ *
+ * @see Database#createViewScan(View)
+ */
+public class ViewScan {
+	private final Database database;
+	private final View view;
+	private int partitions = 4;
+	private List<?> splitKeys = null;
+
+	/**
+	 * (called only from Database.createViewScan())
+	 * @param database
+	 * @param view
+	 */
+	ViewScan(Database database, View view) {
+		this.database = database;
+		this.view = view;
+	}
+
+	/**
+	 * The number of ranges to split the view into when the split points are sampled.  The default is 4.
+	 * @param partitions
+	 */
+	public void setPartitions(int partitions) {
+		if (partitions < 1) {
+			throw new IllegalArgumentException("partitions must be at least 1");
+		}
+		this.partitions = partitions;
+	}
+
+	/**
+	 * Uses the given keys as split points instead of sampling the view.  The keys are plain values
+	 * (a String, Number, JSONArray, etc), in the view's order; n keys give n + 1 ranges.
+	 * @param splitKeys
+	 */
+	public void setSplitKeys(List<?> splitKeys) {
+		this.splitKeys = splitKeys;
+	}
+
+	/**
+	 * Reads every row of the view, passing the rows to the handler as they arrive.
+	 * @param handler
+	 * @return the number of rows read
+	 * @throws IOException
+	 */
+	public int run(ViewRowHandler handler) throws IOException {
+		List<View> ranges = getRanges();
+		List<ViewRowHandler> handlers = new ArrayList<ViewRowHandler>(ranges.size());
+		for (int i = 0; i < ranges.size(); i++) {
+			handlers.add(handler);
+		}
+		return scan(ranges, handlers);
+	}
+
+	/**
+	 * Reads every row of the view into a list.  The ranges are still read concurrently, but the
+	 * result is in the view's order.
+	 * @return
+	 * @throws IOException
+	 */
+	public List<Document> getRows() throws IOException {
+		List<View> ranges = getRanges();
+		final List<List<Document>> rows = new ArrayList<List<Document>>(ranges.size());
+		List<ViewRowHandler> handlers = new ArrayList<ViewRowHandler>(ranges.size());
+		for (int i = 0; i < ranges.size(); i++) {
+			final List<Document> range = new ArrayList<Document>();
+			rows.add(range);
+			handlers.add(new ViewRowHandler() {
+				public void onRow(Document row) {
+					range.add(row);
+				}
+			});
+		}
+		List<Document> all = new ArrayList<Document>(scan(ranges, handlers));
+		for (List<Document> range : rows) {
+			all.addAll(range);
+		}
+		return all;
+	}
+
+	/**
+	 * The views for each of the key ranges, in the view's order.  These are what run() reads, and
+	 * can also be handed out to other workers directly.
+	 * @return
+	 * @throws IOException
+	 */
+	public List<View> getRanges() throws IOException {
+		List<Object[]> bounds = (splitKeys != null) ? givenBounds() : sampledBounds();
+		List<View> ranges = new ArrayList<View>(bounds.size() + 1);
+		for (int i = 0; i <= bounds.size(); i++) {
+			View range = view.copy();
+			range.setSkip(null);
+			range.setLimit(null);
+			if (i > 0) {
+				Object[] start = bounds.get(i - 1);
+				range.setStartKey(View.encodeKey(start[0]));
+				range.setStartKeyDocId(start[1] == null ? null : URLEncoder.encode((String) start[1], "utf-8"));
+			}
+			if (i < bounds.size()) {
+				Object[] end = bounds.get(i);
+				range.setEndKey(View.encodeKey(end[0]));
+				range.setEndKeyDocId(end[1] == null ? null : URLEncoder.encode((String) end[1], "utf-8"));
+				range.setInclusiveEnd(Boolean.FALSE);
+			}
+			ranges.add(range);
+		}
+		return ranges;
+	}
+
+	private List<Object[]> givenBounds() {
+		List<Object[]> bounds = new ArrayList<Object[]>(splitKeys.size());
+		for (Object key : splitKeys) {
+			bounds.add(new Object[] { key, null });
+		}
+		return bounds;
+	}
+
+	/**
+	 * Samples the key and document id of evenly spaced rows of the view
+	 */
+	private List<Object[]> sampledBounds() throws IOException {
+		View count = view.copy();
+		count.setSkip(null);
+		count.setLimit(0);
+		ViewResults results = database.view(count);
+		if (results == null) {
+			throw new IOException("unable to read the size of " + view.getFullName());
+		}
+		JSONObject json = results.getJSONObject();
+		int rows = json.optInt("total_rows") - json.optInt("offset");
+		int step = rows / partitions;
+		if (step < 1) {
+			return Collections.emptyList();
+		}
+
+		List<FutureTask<ViewResults>> samples = new ArrayList<FutureTask<ViewResults>>(partitions - 1);
+		for (int i = 1; i < partitions; i++) {
+			final View sample = view.copy();
+			sample.setSkip(String.valueOf(i * step));
+			sample.setLimit(1);
+			samples.add(database.getSession().fork(new Callable<ViewResults>() {
+				public ViewResults call() {
+					return database.view(sample);
+				}
+			}));
+		}
+
+		List<Object[]> bounds = new ArrayList<Object[]>(partitions - 1);
+		for (FutureTask<ViewResults> f : samples) {
+			ViewResults sample = Database.join(f);
+			if (sample == null) {
+				throw new IOException("unable to sample " + view.getFullName());
+			}
+			List<Document> row = sample.getResults();
+			if (row.isEmpty()) {
+				// past the view's endkey
+				break;
+			}
+			JSONObject r = row.get(0).getJSONObject();
+			bounds.add(new Object[] { r.get("key"), r.getString("id") });
+		}
+		return bounds;
+	}
+
+	private int scan(List<View> ranges, List<ViewRowHandler> handlers) throws IOException {
+		final AtomicBoolean stopped = new AtomicBoolean(false);
+		List<FutureTask<Integer>> futures = new ArrayList<FutureTask<Integer>>(ranges.size());
+		for (int i = 0; i < ranges.size(); i++) {
+			final View range = ranges.get(i);
+			final ViewRowHandler handler = handlers.get(i);
+			futures.add(database.getSession().fork(new Callable<Integer>() {
+				public Integer call() throws IOException {
+					try {
+						return Integer.valueOf(scan(range, handler, stopped));
+					} catch (IOException e) {
+						stopped.set(true);
+						throw e;
+					} catch (RuntimeException e) {
+						stopped.set(true);
+						throw e;
+					}
+				}
+			}));
+		}
+
+		// wait for every range (even after a failure) so no connection is left open
+		int rows = 0;
+		IOException ioError = null;
+		RuntimeException runtimeError = null;
+		for (FutureTask<Integer> f : futures) {
+			try {
+				rows += Database.join(f).intValue();
+			} catch (IOException e) {
+				if (ioError == null) {
+					ioError = e;
+				}
+			} catch (RuntimeException e) {
+				if (runtimeError == null) {
+					runtimeError = e;
+				}
+			}
+		}
+		if (runtimeError != null) {
+			throw runtimeError;
+		} else if (ioError != null) {
+			throw ioError;
+		}
+		return rows;
+	}
+
+	private int scan(View range, ViewRowHandler handler, AtomicBoolean stopped) throws IOException {
+		ViewCursor cursor = database.streamView(range);
+		if (cursor == null) {
+			throw new IOException("unable to read " + range.getFullName() + "?" + range.getQueryString());
+		}
+		int rows = 0;
+		try {
+			while (!stopped.get() && cursor.hasNext()) {
+				handler.onRow(cursor.next());
+				rows++;
+			}
+		} finally {
+			cursor.close();
+		}
+		return rows;
+	}
+
+	/**
+	 * The view being scanned
+	 * @return
+	 */
+	public View getView() {
+		return view;
+	}
+}
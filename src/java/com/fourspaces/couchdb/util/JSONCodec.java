@@ -0,0 +1,73 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * A JSONCodec does all of the parsing and writing of JSON for a Session (responses, documents,
+ * bulk updates, view results).  The default is the StreamingJSONCodec, which reads and writes
+ * straight from/to the HTTP streams.  The JSONLibCodec uses json-lib's own parser and toString(),
+ * and is there for compatibility.
+ * <p>
+ * Either way, values are json-lib objects (JSONObject, JSONArray, String, Number, Boolean, JSONNull),
+ * since that is what Documents are backed by.  All text is UTF-8.
+ * <p>
+ * Implementations must be thread-safe; one codec is shared by all of the threads using a Session.
+ *
+ * @see com.fourspaces.couchdb.Session#setCodec(JSONCodec)
+ */
+public interface JSONCodec {
+
+	/**
+	 * Reads a single JSON value from the stream.
+	 * @param in
+	 * @return a JSONObject, JSONArray, String, Number, Boolean or JSONNull
+	 * @throws IOException
+	 */
+	Object read(InputStream in) throws IOException;
+
+	/**
+	 * Reads a JSON object from the stream
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	JSONObject readObject(InputStream in) throws IOException;
+
+	/**
+	 * Reads a JSON array from the stream
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	JSONArray readArray(InputStream in) throws IOException;
+
+	/**
+	 * Writes a value to the stream as JSON.  Besides the json-lib types, this handles Documents,
+	 * Maps, Collections and arrays.
+	 * @param value
+	 * @param out
+	 * @throws IOException
+	 */
+	void write(Object value, OutputStream out) throws IOException;
+}
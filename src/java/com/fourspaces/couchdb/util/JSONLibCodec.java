@@ -0,0 +1,72 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import net.sf.json.JSONSerializer;
+
+import com.fourspaces.couchdb.Document;
+
+/**
+ * A JSONCodec that does everything through json-lib (JSONObject.fromObject, toString).  This is how
+ * couchdb4j always worked; use it if you rely on json-lib's conversions of beans and other objects
+ * when saving documents.
+ */
+public class JSONLibCodec implements JSONCodec {
+	private static final String UTF8 = "UTF-8";
+
+	public Object read(InputStream in) throws IOException {
+		return JSONSerializer.toJSON(readText(in));
+	}
+
+	public JSONObject readObject(InputStream in) throws IOException {
+		return JSONObject.fromObject(readText(in));
+	}
+
+	public JSONArray readArray(InputStream in) throws IOException {
+		return JSONArray.fromObject(readText(in));
+	}
+
+	public void write(Object value, OutputStream out) throws IOException {
+		String text;
+		if (value instanceof Document) {
+			text = ((Document) value).getJSONObject().toString();
+		} else {
+			text = JSONSerializer.toJSON(value).toString();
+		}
+		out.write(text.getBytes(UTF8));
+		out.flush();
+	}
+
+	private String readText(InputStream in) throws IOException {
+		Reader r = new InputStreamReader(in, UTF8);
+		StringBuilder sb = new StringBuilder();
+		char[] buf = new char[4096];
+		int read;
+		while ((read = r.read(buf)) != -1) {
+			sb.append(buf, 0, read);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,338 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+import net.sf.json.JSONNull;
+import net.sf.json.JSONObject;
+
+/**
+ * A small streaming JSON tokenizer.  Values are read straight from the underlying Reader
+ * (usually the HTTP response stream), so a large response can be walked one element at a time
+ * without first being buffered into a String.
+ * <p>
+ * Objects and arrays are built as json-lib JSONObjects and JSONArrays, so the result is the same
+ * as calling JSONObject.fromObject() on the text.
+ * <p>
+ * Syntax errors are reported as a JSONException, I/O problems as an IOException.
+ */
+public class JSONReader {
+	private static final int BUFFER_SIZE = 8192;
+
+	private final Reader in;
+	private final char[] buf = new char[BUFFER_SIZE];
+	private int pos = 0;
+	private int limit = 0;
+	private long offset = 0;
+	private final StringBuilder sb = new StringBuilder();
+
+	public JSONReader(Reader in) {
+		this.in = in;
+	}
+
+	/**
+	 * Reads UTF-8 encoded JSON from the given stream
+	 * @param in
+	 */
+	public JSONReader(InputStream in) {
+		this(new InputStreamReader(in, Charset.forName("UTF-8")));
+	}
+
+	private boolean fill() throws IOException {
+		if (pos < limit) {
+			return true;
+		}
+		offset += limit;
+		pos = 0;
+		limit = in.read(buf, 0, buf.length);
+		if (limit <= 0) {
+			limit = 0;
+			return false;
+		}
+		return true;
+	}
+
+	private char read() throws IOException {
+		if (!fill()) {
+			throw syntaxError("Unexpected end of input");
+		}
+		return buf[pos++];
+	}
+
+	/**
+	 * Skips any whitespace and returns the next character without consuming it.
+	 * @return the next character, or -1 at the end of the input
+	 * @throws IOException
+	 */
+	public int peek() throws IOException {
+		while (fill()) {
+			char c = buf[pos];
+			if (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+				pos++;
+			} else {
+				return c;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Consumes the next non-whitespace character if it is the given one.
+	 * @param c
+	 * @return true if the character was consumed
+	 * @throws IOException
+	 */
+	public boolean skip(char c) throws IOException {
+		if (peek() == c) {
+			pos++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Consumes the next non-whitespace character, which must be the given one.
+	 * @param c
+	 * @throws IOException
+	 */
+	public void expect(char c) throws IOException {
+		if (!skip(c)) {
+			int found = peek();
+			throw syntaxError("Expected '" + c + "' but found " + (found == -1 ? "end of input" : "'" + (char) found + "'"));
+		}
+	}
+
+	/**
+	 * Reads the next value.  Returns a JSONObject, JSONArray, String, Number, Boolean or JSONNull.
+	 * @return
+	 * @throws IOException
+	 */
+	public Object readValue() throws IOException {
+		int c = peek();
+		switch (c) {
+		case '{':
+			return readObject();
+		case '[':
+			return readArray();
+		case '"':
+			return readString();
+		case 't':
+		case 'f':
+		case 'n':
+			return readLiteral();
+		case -1:
+			throw syntaxError("Unexpected end of input");
+		default:
+			return readNumber();
+		}
+	}
+
+	/**
+	 * Reads the next value, which must be an object
+	 * @return
+	 * @throws IOException
+	 */
+	public JSONObject readObject() throws IOException {
+		expect('{');
+		JSONObject obj = new JSONObject();
+		if (skip('}')) {
+			return obj;
+		}
+		do {
+			String key = readString();
+			expect(':');
+			Object value = readValue();
+			obj.element(key, wrap(value));
+		} while (skip(','));
+		expect('}');
+		return obj;
+	}
+
+	/**
+	 * Reads the next value, which must be an array
+	 * @return
+	 * @throws IOException
+	 */
+	public JSONArray readArray() throws IOException {
+		expect('[');
+		JSONArray ar = new JSONArray();
+		if (skip(']')) {
+			return ar;
+		}
+		do {
+			ar.element(wrap(readValue()));
+		} while (skip(','));
+		expect(']');
+		return ar;
+	}
+
+	/**
+	 * Reads the next value, which must be a string
+	 * @return
+	 * @throws IOException
+	 */
+	public String readString() throws IOException {
+		expect('"');
+		sb.setLength(0);
+		while (true) {
+			// copy runs of plain characters straight out of the buffer
+			int start = pos;
+			while (pos < limit && buf[pos] != '"' && buf[pos] != '\\') {
+				pos++;
+			}
+			sb.append(buf, start, pos - start);
+			if (pos == limit) {
+				// the run reached the end of the buffer, not a quote or escape
+				if (!fill()) {
+					throw syntaxError("Unterminated string");
+				}
+				continue;
+			}
+			char c = read();
+			if (c == '"') {
+				return sb.toString();
+			}
+			c = read();
+			switch (c) {
+			case 'b': sb.append('\b'); break;
+			case 'f': sb.append('\f'); break;
+			case 'n': sb.append('\n'); break;
+			case 'r': sb.append('\r'); break;
+			case 't': sb.append('\t'); break;
+			case 'u':
+				int code = 0;
+				for (int i = 0; i < 4; i++) {
+					int digit = Character.digit(read(), 16);
+					if (digit < 0) {
+						throw syntaxError("Illegal unicode escape");
+					}
+					code = (code << 4) + digit;
+				}
+				sb.append((char) code);
+				break;
+			default:
+				sb.append(c);
+			}
+		}
+	}
+
+	/**
+	 * Skips over the next value without building it.
+	 * @throws IOException
+	 */
+	public void skipValue() throws IOException {
+		int c = peek();
+		if (c == '{' || c == '[') {
+			int depth = 0;
+			do {
+				c = read();
+				if (c == '"') {
+					pos--;
+					readString();
+				} else if (c == '{' || c == '[') {
+					depth++;
+				} else if (c == '}' || c == ']') {
+					depth--;
+				}
+			} while (depth > 0);
+		} else {
+			readValue();
+		}
+	}
+
+	private Object readLiteral() throws IOException {
+		sb.setLength(0);
+		while (fill() && Character.isLetter(buf[pos])) {
+			sb.append(buf[pos++]);
+		}
+		String word = sb.toString();
+		if (word.equals("true")) {
+			return Boolean.TRUE;
+		} else if (word.equals("false")) {
+			return Boolean.FALSE;
+		} else if (word.equals("null")) {
+			return JSONNull.getInstance();
+		}
+		throw syntaxError("Unexpected literal '" + word + "'");
+	}
+
+	private Number readNumber() throws IOException {
+		sb.setLength(0);
+		boolean decimal = false;
+		while (fill()) {
+			char c = buf[pos];
+			if ((c >= '0' && c <= '9') || c == '-' || c == '+') {
+				sb.append(c);
+			} else if (c == '.' || c == 'e' || c == 'E') {
+				sb.append(c);
+				decimal = true;
+			} else {
+				break;
+			}
+			pos++;
+		}
+		if (sb.length() == 0) {
+			throw syntaxError("Unexpected character '" + buf[pos] + "'");
+		}
+		String text = sb.toString();
+		try {
+			if (decimal) {
+				Double d = Double.valueOf(text);
+				if (d.isInfinite()) {
+					return new BigDecimal(text);
+				}
+				return d;
+			}
+			if (text.length() < 10) {
+				return Integer.valueOf(text);
+			}
+			BigInteger big = new BigInteger(text);
+			if (big.bitLength() < 32) {
+				return Integer.valueOf(big.intValue());
+			} else if (big.bitLength() < 64) {
+				return Long.valueOf(big.longValue());
+			}
+			return big;
+		} catch (NumberFormatException e) {
+			throw syntaxError("Illegal number '" + text + "'");
+		}
+	}
+
+	/**
+	 * json-lib re-parses strings that look like JSON when they are added to an object or array.
+	 * Quoting them first keeps them as plain strings, which is what its own parser does.
+	 */
+	private static Object wrap(Object value) {
+		if (value instanceof String && net.sf.json.util.JSONUtils.mayBeJSON((String) value)) {
+			return "\"" + value + "\"";
+		}
+		return value;
+	}
+
+	private JSONException syntaxError(String message) {
+		return new JSONException(message + " at character " + (offset + pos));
+	}
+}
@@ -0,0 +1,233 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+import net.sf.json.JSONFunction;
+import net.sf.json.JSONNull;
+import net.sf.json.JSONObject;
+import net.sf.json.JSONSerializer;
+import net.sf.json.JSONString;
+
+import com.fourspaces.couchdb.Document;
+
+/**
+ * Writes json-lib values (and Documents, Maps, Collections and arrays) to a Writer as JSON text.
+ * Nothing is converted to an intermediate JSONObject or String first -- the structure is walked
+ * and written out as it goes.
+ * <p>
+ * The output matches json-lib's toString(): numbers are formatted the same way, and JSONFunction
+ * and JSONString values are written out as their own text.
+ */
+public class JSONWriter {
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final Writer out;
+
+	public JSONWriter(Writer out) {
+		this.out = out;
+	}
+
+	/**
+	 * Writes the value as JSON
+	 * @param value
+	 * @throws IOException
+	 */
+	public void write(Object value) throws IOException {
+		if (value == null || value instanceof JSONNull
+				|| (value instanceof JSONObject && ((JSONObject) value).isNullObject())) {
+			out.write("null");
+		} else if (value instanceof String) {
+			writeString((String) value);
+		} else if (value instanceof Number) {
+			out.write(net.sf.json.util.JSONUtils.numberToString((Number) value));
+		} else if (value instanceof Boolean) {
+			out.write(value.toString());
+		} else if (value instanceof JSONFunction) {
+			out.write(value.toString());
+		} else if (value instanceof JSONString) {
+			out.write(((JSONString) value).toJSONString());
+		} else if (value instanceof Document) {
+			writeMap(((Document) value).getJSONObject());
+		} else if (value instanceof Map) {
+			writeMap((Map<?, ?>) value);
+		} else if (value instanceof Collection) {
+			writeIterator(((Collection<?>) value).iterator());
+		} else if (value.getClass().isArray()) {
+			out.write('[');
+			int len = Array.getLength(value);
+			for (int i = 0; i < len; i++) {
+				if (i > 0) {
+					out.write(',');
+				}
+				write(Array.get(value, i));
+			}
+			out.write(']');
+		} else if (value instanceof Character) {
+			writeString(value.toString());
+		} else {
+			// beans and anything else json-lib knows how to convert
+			write(JSONSerializer.toJSON(value));
+		}
+	}
+
+	/**
+	 * A quick lower bound on the length of the value's JSON, for deciding how to send it before
+	 * encoding it.  Strings count one byte per character and their escapes aren't counted; numbers
+	 * count as one digit.  The walk stops as soon as the count passes limit.
+	 * @param value
+	 * @param limit
+	 * @return the estimate (anything over limit if it was passed)
+	 */
+	public static long estimateLength(Object value, long limit) {
+		return estimate(value, 0, limit);
+	}
+
+	private static long estimate(Object value, long count, long limit) {
+		if (count > limit) {
+			return count;
+		}
+		if (value == null || value instanceof JSONNull
+				|| (value instanceof JSONObject && ((JSONObject) value).isNullObject())) {
+			return count + 4;
+		} else if (value instanceof String) {
+			return count + ((String) value).length() + 2;
+		} else if (value instanceof Number) {
+			return count + 1;
+		} else if (value instanceof Boolean) {
+			return count + 4;
+		} else if (value instanceof JSONFunction) {
+			return count + value.toString().length();
+		} else if (value instanceof JSONString) {
+			return count + ((JSONString) value).toJSONString().length();
+		} else if (value instanceof Document) {
+			return estimateMap(((Document) value).getJSONObject(), count, limit);
+		} else if (value instanceof Map) {
+			return estimateMap((Map<?, ?>) value, count, limit);
+		} else if (value instanceof Collection) {
+			count += 2;
+			for (Object item : (Collection<?>) value) {
+				count = estimate(item, count + 1, limit);
+				if (count > limit) {
+					break;
+				}
+			}
+			return count;
+		} else if (value.getClass().isArray()) {
+			count += 2;
+			int len = Array.getLength(value);
+			for (int i = 0; i < len && count <= limit; i++) {
+				count = estimate(Array.get(value, i), count + 1, limit);
+			}
+			return count;
+		} else if (value instanceof Character) {
+			return count + 3;
+		} else {
+			return estimate(JSONSerializer.toJSON(value), count, limit);
+		}
+	}
+
+	private static long estimateMap(Map<?, ?> map, long count, long limit) {
+		count += 2;
+		for (Map.Entry<?, ?> entry : map.entrySet()) {
+			// quotes, colon and comma
+			count = estimate(entry.getValue(), count + String.valueOf(entry.getKey()).length() + 4, limit);
+			if (count > limit) {
+				break;
+			}
+		}
+		return count;
+	}
+
+	private void writeMap(Map<?, ?> map) throws IOException {
+		out.write('{');
+		boolean first = true;
+		for (Map.Entry<?, ?> entry : map.entrySet()) {
+			if (!first) {
+				out.write(',');
+			}
+			first = false;
+			writeString(String.valueOf(entry.getKey()));
+			out.write(':');
+			write(entry.getValue());
+		}
+		out.write('}');
+	}
+
+	private void writeIterator(Iterator<?> it) throws IOException {
+		out.write('[');
+		boolean first = true;
+		while (it.hasNext()) {
+			if (!first) {
+				out.write(',');
+			}
+			first = false;
+			write(it.next());
+		}
+		out.write(']');
+	}
+
+	/**
+	 * Writes a quoted and escaped string.
+	 * @param s
+	 * @throws IOException
+	 */
+	public void writeString(String s) throws IOException {
+		out.write('"');
+		int len = s.length();
+		int start = 0;
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			String escape = null;
+			switch (c) {
+			case '"': escape = "\\\""; break;
+			case '\\': escape = "\\\\"; break;
+			case '\b': escape = "\\b"; break;
+			case '\f': escape = "\\f"; break;
+			case '\n': escape = "\\n"; break;
+			case '\r': escape = "\\r"; break;
+			case '\t': escape = "\\t"; break;
+			case '/':
+				if (i > 0 && s.charAt(i - 1) == '<') {
+					escape = "\\/";
+				}
+				break;
+			default:
+				if (c < ' ') {
+					out.write(s, start, i - start);
+					out.write("\\u00");
+					out.write(HEX[(c >> 4) & 0xf]);
+					out.write(HEX[c & 0xf]);
+					start = i + 1;
+				}
+			}
+			if (escape != null) {
+				out.write(s, start, i - start);
+				out.write(escape);
+				start = i + 1;
+			}
+		}
+		out.write(s, start, len - start);
+		out.write('"');
+	}
+}
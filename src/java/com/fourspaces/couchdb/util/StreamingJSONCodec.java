@@ -0,0 +1,54 @@
+/*
+   Copyright 2007 Fourspaces Consulting, LLC
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.fourspaces.couchdb.util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * The default JSONCodec.  Parses with a JSONReader and writes with a JSONWriter, so neither
+ * direction goes through an intermediate String of the whole body.
+ */
+public class StreamingJSONCodec implements JSONCodec {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public Object read(InputStream in) throws IOException {
+		return new JSONReader(in).readValue();
+	}
+
+	public JSONObject readObject(InputStream in) throws IOException {
+		return new JSONReader(in).readObject();
+	}
+
+	public JSONArray readArray(InputStream in) throws IOException {
+		return new JSONReader(in).readArray();
+	}
+
+	public void write(Object value, OutputStream out) throws IOException {
+		Writer w = new BufferedWriter(new OutputStreamWriter(out, UTF8));
+		new JSONWriter(w).write(value);
+		w.flush();
+	}
+}
@@ -1,15 +1,47 @@
 package com.fourspaces.couchdb.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import net.sf.json.JSONObject;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.fourspaces.couchdb.ClusterSession;
+import com.fourspaces.couchdb.CompressionStats;
+import com.fourspaces.couchdb.CouchResponse;
+import com.fourspaces.couchdb.Database;
+import com.fourspaces.couchdb.Document;
+import com.fourspaces.couchdb.HedgeStats;
+import com.fourspaces.couchdb.PoolStats;
 import com.fourspaces.couchdb.Session;
+import com.fourspaces.couchdb.ViewCursor;
 
 public class DatabaseTest {
 	Session sess = TestSession.getTestSession();
@@ -47,6 +79,572 @@ public class DatabaseTest {
 		assertEquals(sess.getDatabaseNames().size(),old+1);
 		sess.deleteDatabase("foo2");
 	}
-	
+
+	@Test public void poolStats() {
+		long leases = sess.getPoolStats().getLeaseCount();
+		sess.getDatabaseNames();
+		PoolStats stats = sess.getPoolStats();
+		assertEquals(leases+1, stats.getLeaseCount());
+		assertEquals(0, stats.getLeased());
+		assertEquals(0, stats.getPending());
+		assertTrue(stats.getAvailable()>0);
+	}
+
+	@SuppressWarnings("deprecation")
+	@Test public void lastResponsePerThread() throws Exception {
+		sess.getDatabaseNames();
+		CouchResponse mine = sess.getLastResponse();
+		assertNotNull(mine);
+		assertTrue(mine.isOk());
+		final CouchResponse[] theirs = new CouchResponse[2];
+		Thread other = new Thread() {
+			public void run() {
+				theirs[0] = sess.getLastResponse();
+				sess.getDatabase("nothere");
+				theirs[1] = sess.getLastResponse();
+			}
+		};
+		other.start();
+		other.join();
+		assertNull(theirs[0]);
+		assertEquals(404, theirs[1].getStatusCode());
+		assertSame(mine, sess.getLastResponse());
+	}
+
+	@Test public void hedgedReads() {
+		Session hedged = TestSession.getTestSession();
+		// the same node stands in for a replica
+		hedged.addHedgeNode(sess.getHost(), sess.getPort());
+		hedged.setHedgePercentile(0.5);
+		for (int i = 0; i < 100; i++) {
+			assertNotNull(hedged.getDatabase("foo"));
+		}
+		HedgeStats stats = hedged.getHedgeStats();
+		assertEquals(100L, stats.getReadCount());
+		assertTrue(stats.getDelay() >= 0);
+		assertTrue(stats.getHedgeWinCount() <= stats.getHedgeCount());
+		hedged.close();
+	}
+
+	@Test public void slowPrimaryIsHedged() throws Exception {
+		// answers the first 20 reads at once, then stalls
+		SlowNode slow = new SlowNode(20, 10000);
+		Session hedged = new Session("localhost", slow.getPort());
+		hedged.addHedgeNode(sess.getHost(), sess.getPort());
+		for (int i = 0; i < 20; i++) {
+			assertNotNull(hedged.getDatabase("foo"));
+		}
+		assertEquals(0L, hedged.getHedgeStats().getHedgeCount());
+		long start = System.currentTimeMillis();
+		assertNotNull(hedged.getDatabase("foo"));
+		assertTrue(System.currentTimeMillis() - start < 10000);
+		HedgeStats stats = hedged.getHedgeStats();
+		assertEquals(1L, stats.getHedgeCount());
+		assertEquals(1L, stats.getHedgeWinCount());
+		hedged.close();
+		slow.close();
+	}
+
+	@Test public void clusterSession() throws Exception {
+		// a free port, where nothing answers until the node comes back
+		ServerSocket free = new ServerSocket(0);
+		int downPort = free.getLocalPort();
+		free.close();
+		String up = sess.getHost() + ":" + sess.getPort();
+		ClusterSession cluster = new ClusterSession(Arrays.asList(up, "localhost:" + downPort));
+		cluster.setFailureThreshold(1);
+		cluster.setProbeInterval(100);
+		ClusterSession.Node upNode = cluster.getNodes().get(0);
+		ClusterSession.Node downNode = cluster.getNodes().get(1);
+
+		// GETs that can't reach the down node are retried on the other one
+		for (int i = 0; i < 20; i++) {
+			assertNotNull(cluster.getDatabase("foo"));
+		}
+		assertTrue(upNode.isHealthy());
+		assertFalse(downNode.isHealthy());
+		assertEquals(1L, downNode.getRequestCount());
+		assertEquals(20L, upNode.getRequestCount());
+
+		// a streamed read is in flight until it is closed
+		ViewCursor cursor = cluster.getDatabase("foo").streamAllDocuments();
+		assertEquals(1, upNode.getInFlight());
+		cursor.close();
+		assertEquals(0, upNode.getInFlight());
+		assertEquals(0, downNode.getInFlight());
+
+		// the probe puts the node back once it answers
+		SlowNode back = new SlowNode(downPort, Integer.MAX_VALUE, 0);
+		for (int i = 0; i < 50 && !downNode.isHealthy(); i++) {
+			Thread.sleep(100);
+		}
+		assertTrue(downNode.isHealthy());
+		cluster.close();
+		back.close();
+	}
+
+	@Test public void basicAuthIsPreemptive() throws Exception {
+		AuthNode node = new AuthNode();
+		Session authed = new Session("localhost", node.getPort(), "user", "pass", true, false);
+		assertNotNull(authed.getDatabase("foo"));
+		// sent with the first request, not after a 401 challenge
+		assertEquals(Arrays.asList("GET /foo"), node.getRequests());
+		assertEquals("Basic dXNlcjpwYXNz", node.getAuthorizations().get(0));
+		authed.close();
+		node.close();
+	}
+
+	@Test public void cookieAuthLogsInOnce() throws Exception {
+		AuthNode node = new AuthNode();
+		final Session authed = new Session("localhost", node.getPort(), "user", "pass");
+		authed.setCookieAuth(true);
+		final AtomicInteger found = new AtomicInteger();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					if (authed.getDatabase("foo") != null) {
+						found.incrementAndGet();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertEquals(threads.length, found.get());
+		assertEquals(1, node.getLogins());
+		assertEquals("POST /_session", node.getRequests().get(0));
+		authed.close();
+		node.close();
+	}
+
+	@Test public void cookieAuthLogsInAgainAfter401() throws Exception {
+		AuthNode node = new AuthNode();
+		Session authed = new Session("localhost", node.getPort(), "user", "pass");
+		authed.setCookieAuth(true);
+		assertNotNull(authed.getDatabase("foo"));
+		// the server drops the session before it is due for a refresh
+		node.dropSessions();
+		assertNotNull(authed.getDatabase("foo"));
+		assertEquals(2, node.getLogins());
+		assertEquals(Arrays.asList("POST /_session", "GET /foo", "GET /foo", "POST /_session", "GET /foo"), node.getRequests());
+		authed.close();
+		node.close();
+	}
+
+	@Test public void cookieAuthRefreshesSession() throws Exception {
+		AuthNode node = new AuthNode();
+		Session authed = new Session("localhost", node.getPort(), "user", "pass");
+		authed.setCookieAuth(true);
+		authed.setSessionRefreshInterval(1000);
+		assertNotNull(authed.getDatabase("foo"));
+		assertNotNull(authed.getDatabase("foo"));
+		assertEquals(1, node.getLogins());
+		Thread.sleep(1200);
+		assertNotNull(authed.getDatabase("foo"));
+		assertEquals(2, node.getLogins());
+		authed.close();
+		node.close();
+	}
+
+	@Test public void gzipRoundTrip() throws Exception {
+		GzipNode node = new GzipNode();
+		Session gzipped = new Session("localhost", node.getPort());
+		gzipped.setGzipRequestThreshold(1024);
+		Database db = gzipped.getDatabase("foo");
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 500; i++) {
+			text.append("all work and no play makes jack a dull boy ").append(i % 10);
+		}
+		Document doc = new Document();
+		doc.put("text", text.toString());
+
+		// compressed on the way out
+		db.saveDocument(doc, "big");
+		CouchResponse saved = gzipped.getLastResponse();
+		assertEquals("gzip", node.getRequestEncoding());
+		assertTrue(saved.getRequestWireSize() < saved.getRequestSize());
+		assertEquals(node.getRequestWireSize(), saved.getRequestWireSize());
+
+		// and decompressed on the way in
+		Document read = db.getDocument("big");
+		assertEquals(text.toString(), read.get("text"));
+		CouchResponse got = gzipped.getLastResponse();
+		assertTrue(got.getResponseWireSize() < got.getResponseSize());
+
+		CompressionStats stats = gzipped.getCompressionStats();
+		assertEquals(saved.getRequestSize(), stats.getRequestBytes());
+		assertEquals(saved.getRequestWireSize(), stats.getRequestWireBytes());
+		assertTrue(stats.getResponseWireBytes() < stats.getResponseBytes());
+		assertTrue(stats.getResponseBytes() >= got.getResponseSize());
+		gzipped.close();
+		node.close();
+	}
+
+	/**
+	 * Stands in for a node that keeps documents in memory.  It takes gzip compressed request
+	 * bodies, and compresses the bodies of its answers (if they are big enough) when asked to.
+	 */
+	static class GzipNode extends Thread {
+		private final ServerSocket server;
+		private final Map<String, JSONObject> docs = new HashMap<String, JSONObject>();
+		private String requestEncoding;
+		private long requestWireSize;
+
+		GzipNode() throws IOException {
+			this.server = new ServerSocket(0);
+			setDaemon(true);
+			start();
+		}
+
+		int getPort() {
+			return server.getLocalPort();
+		}
+
+		/** the Content-Encoding of the last request body */
+		synchronized String getRequestEncoding() {
+			return requestEncoding;
+		}
+
+		/** the size of the last request body as received */
+		synchronized long getRequestWireSize() {
+			return requestWireSize;
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					final Socket socket = server.accept();
+					new Thread() {
+						public void run() {
+							answer(socket);
+						}
+					}.start();
+				}
+			} catch (IOException e) {
+				// closed
+			}
+		}
+
+		private void answer(Socket socket) {
+			try {
+				InputStream in = socket.getInputStream();
+				String[] requestLine = readLine(in).split(" ");
+				String path = requestLine[1].replaceFirst("\\?.*", "");
+				String encoding = null;
+				boolean acceptGzip = false;
+				boolean chunked = false;
+				int length = 0;
+				String line;
+				while ((line = readLine(in)).length() > 0) {
+					int colon = line.indexOf(':');
+					String name = line.substring(0, colon).trim();
+					String value = line.substring(colon + 1).trim();
+					if (name.equalsIgnoreCase("Content-Encoding")) {
+						encoding = value;
+					} else if (name.equalsIgnoreCase("Accept-Encoding")) {
+						acceptGzip = value.indexOf("gzip") >= 0;
+					} else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+						chunked = value.equalsIgnoreCase("chunked");
+					} else if (name.equalsIgnoreCase("Content-Length")) {
+						length = Integer.parseInt(value);
+					}
+				}
+				ByteArrayOutputStream received = new ByteArrayOutputStream();
+				if (chunked) {
+					int size;
+					while ((size = Integer.parseInt(readLine(in).trim(), 16)) > 0) {
+						copy(in, received, size);
+						readLine(in);
+					}
+					readLine(in);
+				} else {
+					copy(in, received, length);
+				}
+				byte[] body = received.toByteArray();
+
+				String status = "200 OK";
+				String answer;
+				synchronized (this) {
+					if (requestLine[0].equals("PUT")) {
+						requestEncoding = encoding;
+						requestWireSize = body.length;
+						if ("gzip".equals(encoding)) {
+							ByteArrayOutputStream plain = new ByteArrayOutputStream();
+							copy(new GZIPInputStream(new ByteArrayInputStream(body)), plain, -1);
+							body = plain.toByteArray();
+						}
+						String id = path.substring(path.lastIndexOf('/') + 1);
+						JSONObject doc = JSONObject.fromObject(new String(body, "UTF-8"));
+						doc.put("_id", id);
+						doc.put("_rev", "1-a");
+						docs.put(id, doc);
+						status = "201 Created";
+						answer = "{\"ok\":true,\"id\":\"" + id + "\",\"rev\":\"1-a\"}";
+					} else if (path.equals("/foo")) {
+						answer = "{\"db_name\":\"foo\",\"doc_count\":" + docs.size() + ",\"update_seq\":0}";
+					} else {
+						JSONObject doc = docs.get(path.substring(path.lastIndexOf('/') + 1));
+						if (doc == null) {
+							status = "404 Object Not Found";
+							answer = "{\"error\":\"not_found\",\"reason\":\"missing\"}";
+						} else {
+							answer = doc.toString();
+						}
+					}
+				}
+				byte[] bytes = answer.getBytes("UTF-8");
+				String headers = "";
+				if (acceptGzip && bytes.length >= 1024) {
+					ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+					GZIPOutputStream zip = new GZIPOutputStream(zipped);
+					zip.write(bytes);
+					zip.close();
+					bytes = zipped.toByteArray();
+					headers = "Content-Encoding: gzip\r\n";
+				}
+				OutputStream out = socket.getOutputStream();
+				out.write(("HTTP/1.1 " + status + "\r\nContent-Type: application/json\r\n" + headers + "Content-Length: "
+						+ bytes.length + "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+				out.write(bytes);
+				out.flush();
+			} catch (Exception e) {
+				// the client gave up on it
+			} finally {
+				try {
+					socket.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+
+		/** a line of the request head, without the CRLF */
+		private static String readLine(InputStream in) throws IOException {
+			StringBuilder line = new StringBuilder();
+			int c;
+			while ((c = in.read()) != -1 && c != '\n') {
+				if (c != '\r') {
+					line.append((char) c);
+				}
+			}
+			return line.toString();
+		}
+
+		/** copies count bytes, or everything if count is negative */
+		private static void copy(InputStream in, OutputStream out, int count) throws IOException {
+			byte[] buf = new byte[8192];
+			while (count != 0) {
+				int n = in.read(buf, 0, (count < 0) ? buf.length : Math.min(buf.length, count));
+				if (n == -1) {
+					if (count > 0) {
+						throw new IOException("request ended " + count + " bytes short");
+					}
+					return;
+				}
+				out.write(buf, 0, n);
+				if (count > 0) {
+					count -= n;
+				}
+			}
+		}
+
+		void close() throws IOException {
+			server.close();
+		}
+	}
+
+	/**
+	 * Stands in for a node that needs authentication: it hands out AuthSession cookies on
+	 * POST /_session, and answers other requests with the database info if they carry a cookie
+	 * that is still valid or an Authorization header, or with a 401.  It records the requests.
+	 */
+	static class AuthNode extends Thread {
+		private final ServerSocket server;
+		private final List<String> requests = new ArrayList<String>();
+		private final List<String> authorizations = new ArrayList<String>();
+		private final Set<String> sessions = new HashSet<String>();
+		private int logins = 0;
+
+		AuthNode() throws IOException {
+			this.server = new ServerSocket(0);
+			setDaemon(true);
+			start();
+		}
+
+		int getPort() {
+			return server.getLocalPort();
+		}
+
+		synchronized List<String> getRequests() {
+			return new ArrayList<String>(requests);
+		}
+
+		/** the Authorization header of each request (null if it had none) */
+		synchronized List<String> getAuthorizations() {
+			return new ArrayList<String>(authorizations);
+		}
+
+		synchronized int getLogins() {
+			return logins;
+		}
+
+		synchronized void dropSessions() {
+			sessions.clear();
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					final Socket socket = server.accept();
+					new Thread() {
+						public void run() {
+							answer(socket);
+						}
+					}.start();
+				}
+			} catch (IOException e) {
+				// closed
+			}
+		}
+
+		private void answer(Socket socket) {
+			try {
+				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+				String[] requestLine = in.readLine().split(" ");
+				String request = requestLine[0] + " " + requestLine[1];
+				String authorization = null;
+				String cookie = "";
+				int length = 0;
+				String line;
+				while ((line = in.readLine()) != null && line.length() > 0) {
+					int colon = line.indexOf(':');
+					String name = line.substring(0, colon).trim();
+					String value = line.substring(colon + 1).trim();
+					if (name.equalsIgnoreCase("Authorization")) {
+						authorization = value;
+					} else if (name.equalsIgnoreCase("Cookie")) {
+						cookie = value;
+					} else if (name.equalsIgnoreCase("Content-Length")) {
+						length = Integer.parseInt(value);
+					}
+				}
+				for (int i = 0; i < length; i++) {
+					in.read();
+				}
+				String status = "200 OK";
+				String headers = "";
+				String body = "{\"db_name\":\"foo\",\"doc_count\":0,\"update_seq\":0}";
+				synchronized (this) {
+					requests.add(request);
+					authorizations.add(authorization);
+					if (request.equals("POST /_session")) {
+						String session = "s" + (++logins);
+						sessions.add(session);
+						headers = "Set-Cookie: AuthSession=" + session + "; Version=1; Path=/; HttpOnly\r\n";
+						body = "{\"ok\":true,\"name\":\"user\",\"roles\":[]}";
+					} else if (authorization == null && !sessions.contains(cookie.replaceFirst(".*AuthSession=", ""))) {
+						status = "401 Unauthorized";
+						body = "{\"error\":\"unauthorized\",\"reason\":\"You are not authorized to access this db.\"}";
+					}
+				}
+				if (request.equals("POST /_session")) {
+					// long enough for the other threads to be waiting for the login
+					Thread.sleep(200);
+				}
+				byte[] bytes = body.getBytes("US-ASCII");
+				OutputStream out = socket.getOutputStream();
+				out.write(("HTTP/1.1 " + status + "\r\nContent-Type: application/json\r\n" + headers + "Content-Length: "
+						+ bytes.length + "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+				out.write(bytes);
+				out.flush();
+			} catch (Exception e) {
+				// the client gave up on it
+			} finally {
+				try {
+					socket.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+
+		void close() throws IOException {
+			server.close();
+		}
+	}
+
+	/**
+	 * Stands in for a node that answers every GET with the same database info, and stalls once
+	 * it has answered a number of them.  The probes of a ClusterSession get the same answer.
+	 */
+	static class SlowNode extends Thread {
+		private final ServerSocket server;
+		private final int fast;
+		private final long stall;
+		private int answered = 0;
+
+		SlowNode(int fast, long stall) throws IOException {
+			this(0, fast, stall);
+		}
+
+		SlowNode(int port, int fast, long stall) throws IOException {
+			this.server = new ServerSocket(port);
+			this.fast = fast;
+			this.stall = stall;
+			setDaemon(true);
+			start();
+		}
+
+		int getPort() {
+			return server.getLocalPort();
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					final Socket socket = server.accept();
+					final boolean slow = ++answered > fast;
+					new Thread() {
+						public void run() {
+							answer(socket, slow);
+						}
+					}.start();
+				}
+			} catch (IOException e) {
+				// closed
+			}
+		}
+
+		private void answer(Socket socket, boolean slow) {
+			try {
+				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+				String line;
+				while ((line = in.readLine()) != null && line.length() > 0) {
+					// the request's headers
+				}
+				if (slow) {
+					Thread.sleep(stall);
+				}
+				byte[] body = "{\"db_name\":\"foo\",\"doc_count\":0,\"update_seq\":0}".getBytes("US-ASCII");
+				OutputStream out = socket.getOutputStream();
+				out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: " + body.length
+						+ "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+				out.write(body);
+				out.flush();
+			} catch (Exception e) {
+				// the client gave up on it
+			} finally {
+				try {
+					socket.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+
+		void close() throws IOException {
+			server.close();
+		}
+	}
 
 }
@@ -5,8 +5,31 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import net.sf.json.JSONObject;
 
@@ -16,11 +39,21 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.fourspaces.couchdb.Attachment;
+import com.fourspaces.couchdb.AttachmentCache;
+import com.fourspaces.couchdb.AttachmentChannel;
+import com.fourspaces.couchdb.AttachmentHandler;
+import com.fourspaces.couchdb.BulkWriter;
+import com.fourspaces.couchdb.Change;
+import com.fourspaces.couchdb.ChangesFeed;
+import com.fourspaces.couchdb.CouchException;
 import com.fourspaces.couchdb.Database;
 import com.fourspaces.couchdb.Document;
+import com.fourspaces.couchdb.DocumentCache;
 import com.fourspaces.couchdb.Session;
 import com.fourspaces.couchdb.View;
 import com.fourspaces.couchdb.ViewResults;
+import com.fourspaces.couchdb.util.JSONReader;
 
 public class DocumentTest {
   Log log = LogFactory.getLog(getClass());
@@ -89,6 +122,19 @@ public class DocumentTest {
 		
 	}
 
+	@Test public void getAndSaveAsync() throws Exception {
+	  Document doc = new Document();
+	  doc.put("foo", "bar");
+	  doc.setId("asyncdoc");
+	  Document saved = foo.saveDocumentAsync(doc).get(30, TimeUnit.SECONDS);
+	  assertNotNull(saved.getRev());
+
+	  Document read = foo.getDocumentAsync("asyncdoc").get(30, TimeUnit.SECONDS);
+	  assertEquals("bar", read.get("foo"));
+	  assertEquals(saved.getRev(), read.getRev());
+	  assertNull(foo.getDocumentAsync("nothere").get(30, TimeUnit.SECONDS));
+	}
+
 	@Test
 	public void list1() {
 	  
@@ -126,4 +172,298 @@ public class DocumentTest {
 	}
 	  
 
+	@Test public void bulkWriter() throws Exception {
+	  BulkWriter writer = foo.createBulkWriter(2, 1024 * 1024, 50);
+	  List<Future<Document>> saved = new ArrayList<Future<Document>>();
+	  for (int i = 0; i < 5; i++) {
+	    Document d = new Document();
+	    d.put("n", i);
+	    saved.add(writer.save(d));
+	  }
+	  Document stale = new Document();
+	  stale.setId("foo"); // already exists, so saving without a _rev is a conflict
+	  Future<Document> conflict = writer.save(stale);
+	  writer.close();
+
+	  for (Future<Document> f : saved) {
+	    Document d = f.get();
+	    assertNotNull(d.getId());
+	    assertNotNull(foo.getDocument(d.getId()));
+	  }
+	  try {
+	    conflict.get();
+	    fail("expected a conflict");
+	  } catch (ExecutionException e) {
+	    assertTrue(((CouchException) e.getCause()).isConflict());
+	  }
+	}
+
+	@Test public void changesIteratorStopped() throws Exception {
+	  ChangesFeed feed = foo.getChangesFeed();
+	  Iterator<Change> changes = feed.iterator(1);
+	  assertTrue(changes.hasNext());
+	  changes.next();
+	  // the next change fills the queue; the feed blocks on the one after it
+	  Thread.sleep(500);
+	  feed.stop();
+	  while (feed.isRunning()) {
+	    Thread.sleep(10);
+	  }
+	  String last = null;
+	  while (changes.hasNext()) {
+	    last = changes.next().getSeq();
+	  }
+	  // the change that never made it into the queue must be read again on resume
+	  assertNotNull(last);
+	  assertEquals(last, feed.getLastSeq());
+	}
+
+	@Test public void changesFeedWithoutListener() {
+	  ChangesFeed feed = foo.getChangesFeed();
+	  try {
+	    feed.run();
+	    fail("expected the feed to refuse to run without a listener");
+	  } catch (IllegalStateException e) {
+	    assertFalse(feed.isRunning());
+	  }
+	}
+
+	@Test public void getDocuments() throws Exception {
+	  Document a = new Document();
+	  a.put("foo", "a");
+	  foo.saveDocument(a, "bulk_a");
+	  Document b = new Document();
+	  b.put("foo", "b");
+	  foo.saveDocument(b, "bulk_b");
+
+	  foo.setBulkFetchSize(1);
+	  List<String> missing = new ArrayList<String>();
+	  List<Document> docs = foo.getDocuments(Arrays.asList("bulk_b", "nothere", "bulk_a"), missing);
+	  assertEquals(3, docs.size());
+	  assertEquals("b", docs.get(0).get("foo"));
+	  assertNull(docs.get(1));
+	  assertEquals("a", docs.get(2).get("foo"));
+	  assertEquals(Arrays.asList("nothere"), missing);
+	}
+
+	@Test public void getDocumentsOnBoundedExecutor() throws Exception {
+	  foo.setBulkFetchSize(1);
+	  // the only thread of the pool is the caller, so the chunks can't wait for one
+	  ExecutorService pool = Executors.newFixedThreadPool(1);
+	  sess.setExecutor(pool);
+	  Future<List<Document>> docs = pool.submit(new Callable<List<Document>>() {
+	    public List<Document> call() throws Exception {
+	      return foo.getDocuments(Arrays.asList("foo", "nothere", "foo"));
+	    }
+	  });
+	  List<Document> result = docs.get(30, TimeUnit.SECONDS);
+	  assertEquals("foo", result.get(0).getId());
+	  assertNull(result.get(1));
+	  assertEquals("foo", result.get(2).getId());
+	  pool.shutdown();
+	}
+
+	@Test public void coalescedReads() throws Exception {
+	  foo.setCoalesceReads(true);
+	  assertTrue(foo.isCoalesceReads());
+	  List<Future<Document>> reads = new ArrayList<Future<Document>>();
+	  for (int i = 0; i < 50; i++) {
+	    reads.add(foo.getDocumentAsync("foo"));
+	  }
+	  for (Future<Document> read : reads) {
+	    assertEquals("foo", read.get().getId());
+	  }
+
+	  // released together, so they overlap
+	  final CountDownLatch go = new CountDownLatch(1);
+	  ExecutorService pool = Executors.newFixedThreadPool(50);
+	  List<Future<byte[]>> raw = new ArrayList<Future<byte[]>>();
+	  for (int i = 0; i < 50; i++) {
+	    raw.add(pool.submit(new Callable<byte[]>() {
+	      public byte[] call() throws Exception {
+	        go.await();
+	        return foo.getDocumentBytes("foo");
+	      }
+	    }));
+	  }
+	  go.countDown();
+	  Map<byte[], Boolean> bodies = new IdentityHashMap<byte[], Boolean>();
+	  for (Future<byte[]> read : raw) {
+	    byte[] body = read.get();
+	    assertTrue(new String(body, "UTF-8").contains("\"_id\":\"foo\""));
+	    bodies.put(body, Boolean.TRUE);
+	  }
+	  pool.shutdown();
+	  assertTrue(foo.getCoalescedReadCount() > 0);
+	  // each caller still gets its own copy of the body
+	  assertEquals(50, bodies.size());
+
+	  foo.setCoalesceReads(false);
+	  assertEquals(0, foo.getCoalescedReadCount());
+	}
+
+	@Test public void documentCache() throws Exception {
+	  DocumentCache cache = new DocumentCache(1024 * 1024);
+	  foo.setDocumentCache(cache);
+	  Document d = new Document();
+	  d.put("foo", "cached");
+	  foo.saveDocument(d, "cached");
+	  assertEquals(1, cache.getCount());
+
+	  // answered with a 304
+	  Document read = foo.getDocument("cached");
+	  assertEquals("cached", read.get("foo"));
+	  assertEquals(d.getRev(), read.getRev());
+	  assertEquals(1, cache.getHitCount());
+	  assertEquals(0, cache.getMissCount());
+
+	  assertTrue(foo.deleteDocument(read));
+	  assertEquals(0, cache.getCount());
+	  assertNull(foo.getDocument("cached"));
+	}
+
+	@Test public void rawDocuments() throws Exception {
+	  Document saved = foo.saveRawDocument("{\"_id\":\"raw\",\"foo\":\"bar\"}".getBytes("UTF-8"));
+	  assertEquals("raw", saved.getId());
+	  assertNotNull(saved.getRev());
+
+	  String json = new String(foo.getDocumentBytes("raw"), "UTF-8");
+	  assertEquals("bar", JSONObject.fromObject(json).getString("foo"));
+	  InputStream in = foo.getDocumentStream("raw");
+	  try {
+	    assertEquals(saved.getRev(), new JSONReader(in).readObject().getString("_rev"));
+	  } finally {
+	    in.close();
+	  }
+
+	  List<byte[]> docs = new ArrayList<byte[]>();
+	  docs.add(("{\"_id\":\"raw\",\"_rev\":\"" + saved.getRev() + "\",\"foo\":\"baz\"}").getBytes("UTF-8"));
+	  docs.add("{\"foo\":\"new\"}".getBytes("UTF-8"));
+	  docs.add("{\"_id\":\"raw\",\"foo\":\"conflict\"}".getBytes("UTF-8"));
+	  List<Document> results = foo.bulkSaveRawDocuments(docs);
+	  assertEquals(3, results.size());
+	  assertFalse(saved.getRev().equals(results.get(0).getRev()));
+	  assertNotNull(results.get(1).getId());
+	  assertEquals("conflict", results.get(2).getString("error"));
+	  assertEquals("baz", foo.getDocument("raw").getString("foo"));
+	}
+
+	@Test public void binaryAttachments() throws Exception {
+	  byte[] data = new byte[256 * 1024];
+	  new Random(42).nextBytes(data);
+	  File file = File.createTempFile("couchdb4j", ".bin");
+	  file.deleteOnExit();
+	  FileOutputStream out = new FileOutputStream(file);
+	  out.write(data);
+	  out.close();
+
+	  Document d = foo.getDocument("foo");
+	  String rev = foo.putAttachment("foo", d.getRev(), "data.bin", "application/octet-stream", file);
+	  rev = foo.putAttachment("foo", rev, "copy.bin", "application/octet-stream", ByteBuffer.wrap(data));
+	  assertFalse(rev.equals(d.getRev()));
+
+	  ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	  Attachment a = foo.getAttachment("foo", "data.bin", bytes);
+	  assertTrue(Arrays.equals(data, bytes.toByteArray()));
+	  assertEquals(data.length, a.getLength());
+	  assertEquals("application/octet-stream", a.getContentType());
+
+	  ByteBuffer buffer = ByteBuffer.allocate(data.length);
+	  Attachment copy = foo.getAttachment("foo", "copy.bin", buffer);
+	  assertTrue(Arrays.equals(data, buffer.array()));
+	  assertEquals(a.getDigest(), copy.getDigest());
+	}
+
+	@Test public void attachmentRanges() throws Exception {
+	  byte[] data = new byte[12 * 8192];
+	  new Random(7).nextBytes(data);
+	  Document d = foo.getDocument("foo");
+	  foo.putAttachment("foo", d.getRev(), "data.bin", "application/octet-stream", ByteBuffer.wrap(data));
+
+	  ByteBuffer part = foo.getAttachmentRange("foo", "data.bin", 5000, 100);
+	  assertEquals(ByteBuffer.wrap(data, 5000, 100), part);
+
+	  AttachmentChannel channel = foo.openAttachmentChannel("foo", "data.bin", 8192, 4);
+	  assertEquals(data.length, channel.size());
+	  channel.position(data.length - 4096);
+	  assertEquals(0, channel.read(ByteBuffer.allocate(0)));
+	  ByteBuffer tail = ByteBuffer.allocate(8192);
+	  assertEquals(4096, channel.read(tail));
+	  tail.flip();
+	  assertEquals(ByteBuffer.wrap(data, data.length - 4096, 4096), tail);
+	  assertEquals(1, channel.getFetchCount());
+	  assertEquals(-1, channel.read(tail));
+	  channel.close();
+	}
+
+	@Test public void attachmentCache() throws Exception {
+	  byte[] data = new byte[64 * 1024];
+	  new Random(11).nextBytes(data);
+	  Document d = foo.getDocument("foo");
+	  foo.putAttachment("foo", d.getRev(), "data.bin", "application/octet-stream", ByteBuffer.wrap(data));
+
+	  File dir = File.createTempFile("couchdb4j", "cache");
+	  dir.delete();
+	  AttachmentCache cache = new AttachmentCache(dir, 1024 * 1024);
+	  foo.setAttachmentCache(cache);
+	  try {
+	    d = foo.getDocument("foo");
+	    assertEquals(ByteBuffer.wrap(data), foo.getAttachment(d, "data.bin"));
+	    assertEquals(1, cache.getCount());
+	    assertEquals(1, cache.getMissCount());
+	    // answered from disk
+	    assertEquals(ByteBuffer.wrap(data), foo.getAttachment(d, "data.bin"));
+	    assertEquals(1, cache.getHitCount());
+
+	    // a download that doesn't match the stub's digest isn't cached
+	    cache.clear();
+	    d.getJSONObject().getJSONObject("_attachments").getJSONObject("data.bin").put("digest", "md5-AAAAAAAAAAAAAAAAAAAAAA==");
+	    try {
+	      foo.getAttachment(d, "data.bin");
+	      fail("expected a digest mismatch");
+	    } catch (IOException e) {
+	      assertEquals(0, cache.getCount());
+	    }
+	  } finally {
+	    cache.clear();
+	    dir.delete();
+	  }
+	}
+
+	@Test public void multipartAttachments() throws Exception {
+	  byte[] data = new byte[100 * 1024];
+	  new Random(13).nextBytes(data);
+	  Document d = new Document();
+	  d.put("kind", "multipart");
+	  List<Attachment> attachments = new ArrayList<Attachment>();
+	  attachments.add(Attachment.of("data.bin", "application/octet-stream", ByteBuffer.wrap(data)));
+	  attachments.add(Attachment.of("note.txt", "text/plain", ByteBuffer.wrap("hello".getBytes("UTF-8"))));
+	  foo.saveDocument(d, attachments);
+	  assertNotNull(d.getId());
+	  assertNotNull(d.getRev());
+
+	  Map<String, Attachment> read = new HashMap<String, Attachment>();
+	  Document back = foo.getDocumentWithAttachments(d.getId(), read);
+	  assertEquals("multipart", back.getString("kind"));
+	  assertEquals(2, read.size());
+	  assertEquals(ByteBuffer.wrap(data), read.get("data.bin").getContent());
+	  assertEquals(ByteBuffer.wrap("hello".getBytes("UTF-8")), read.get("note.txt").getContent());
+	  assertEquals("text/plain", read.get("note.txt").getContentType());
+
+	  // streamed, reading only the start of the big attachment
+	  final Map<String, byte[]> heads = new HashMap<String, byte[]>();
+	  foo.getDocumentWithAttachments(d.getId(), new AttachmentHandler() {
+	    public void onAttachment(String name, String contentType, String digest, InputStream content) throws IOException {
+	      ByteArrayOutputStream head = new ByteArrayOutputStream();
+	      byte[] buf = new byte[5];
+	      int n = content.read(buf);
+	      head.write(buf, 0, Math.max(n, 0));
+	      heads.put(name, head.toByteArray());
+	    }
+	  });
+	  assertEquals(2, heads.size());
+	  assertEquals(ByteBuffer.wrap(data, 0, 5), ByteBuffer.wrap(heads.get("data.bin")));
+	  assertEquals("hello", new String(heads.get("note.txt"), "UTF-8"));
+	}
+
 }
@@ -0,0 +1,89 @@
+package com.fourspaces.couchdb.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.junit.Test;
+
+import com.fourspaces.couchdb.Document;
+import com.fourspaces.couchdb.util.JSONCodec;
+import com.fourspaces.couchdb.util.JSONLibCodec;
+import com.fourspaces.couchdb.util.JSONWriter;
+import com.fourspaces.couchdb.util.StreamingJSONCodec;
+
+public class JSONCodecTest {
+	private static final String SAMPLE = "{\"_id\":\"doc1\",\"n\":12,\"l\":12345678901,\"d\":1.5,\"t\":true,\"nil\":null,"
+		+ "\"s\":\"quote \\\" slash \\\\ tab \\t \\u00e9 </script>\",\"json\":\"[1,2]\",\"a\":[1,\"x\",{\"y\":[]}],\"o\":{}}";
+
+	private Object roundTrip(JSONCodec codec, Object value) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		codec.write(value, out);
+		return codec.read(new ByteArrayInputStream(out.toByteArray()));
+	}
+
+	@Test
+	public void streamingMatchesJSONLib() throws Exception {
+		JSONObject expected = JSONObject.fromObject(SAMPLE);
+		JSONObject parsed = new StreamingJSONCodec().readObject(new ByteArrayInputStream(SAMPLE.getBytes("UTF-8")));
+		assertEquals(expected, parsed);
+		assertTrue(parsed.get("json") instanceof String);
+	}
+
+	@Test
+	public void streamingRoundTrip() throws Exception {
+		JSONObject obj = JSONObject.fromObject(SAMPLE);
+		assertEquals(obj, roundTrip(new StreamingJSONCodec(), obj));
+	}
+
+	@Test
+	public void jsonLibRoundTrip() throws Exception {
+		JSONObject obj = JSONObject.fromObject(SAMPLE);
+		assertEquals(obj, roundTrip(new JSONLibCodec(), obj));
+	}
+
+	@Test
+	public void writesSameTextAsJSONLib() throws Exception {
+		JSONObject obj = JSONObject.fromObject(SAMPLE);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new StreamingJSONCodec().write(obj, out);
+		assertEquals(obj.toString(), out.toString("UTF-8"));
+	}
+
+	@Test
+	public void writesDocuments() throws Exception {
+		Document[] docs = new Document[] { new Document(JSONObject.fromObject("{\"a\":1}")), new Document(JSONObject.fromObject("{\"b\":2}")) };
+		JSONObject bulk = (JSONObject) roundTrip(new StreamingJSONCodec(), Collections.singletonMap("docs", docs));
+		JSONArray ar = bulk.getJSONArray("docs");
+		assertEquals(2, ar.size());
+		assertEquals(1, ar.getJSONObject(0).getInt("a"));
+		assertEquals(2, ar.getJSONObject(1).getInt("b"));
+	}
+
+	@Test
+	public void readsStringsAcrossBufferBoundaries() throws Exception {
+		JSONArray ar = new JSONArray();
+		for (int i = 0; i < 5000; i++) {
+			ar.add(JSONObject.fromObject("{\"id\":\"d" + i + "\",\"rev\":\"1-x\"}"));
+		}
+		assertEquals(ar, roundTrip(new StreamingJSONCodec(), ar));
+	}
+
+	@Test
+	public void estimatesNoMoreThanTheEncodedLength() throws Exception {
+		JSONObject obj = JSONObject.fromObject(SAMPLE);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new StreamingJSONCodec().write(obj, out);
+		long estimate = JSONWriter.estimateLength(obj, Long.MAX_VALUE);
+		assertTrue(estimate > 0);
+		assertTrue(estimate <= out.size());
+		// stops early once over the limit
+		assertTrue(JSONWriter.estimateLength(obj, 10) > 10);
+	}
+}
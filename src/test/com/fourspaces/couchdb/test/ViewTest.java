@@ -2,6 +2,16 @@ package com.fourspaces.couchdb.test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.json.JSONObject;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -14,7 +24,10 @@ import com.fourspaces.couchdb.Database;
 import com.fourspaces.couchdb.Document;
 import com.fourspaces.couchdb.Session;
 import com.fourspaces.couchdb.View;
+import com.fourspaces.couchdb.ViewCursor;
+import com.fourspaces.couchdb.ViewPager;
 import com.fourspaces.couchdb.ViewResults;
+import com.fourspaces.couchdb.ViewScan;
 
 public class ViewTest {
 
@@ -55,6 +68,28 @@ public class ViewTest {
   }
  
   
+  @Test
+  public void batchLoad() throws Exception {
+    ViewResults results = foo.getAllDocuments();
+    results.setBatchLoadSize(2);
+    List<Document> rows = results.getResults();
+    assertEquals(5, rows.size());
+
+    Document first = rows.get(0);
+    first.put("foo", "unsaved");
+    first.refresh();
+    // the full document is merged in without overwriting the local change
+    assertEquals("unsaved", first.get("foo"));
+    assertNotNull(first.get("_rev"));
+    assertNotNull(rows.get(1).get("_rev"));
+
+    // outside the first batch
+    Document last = rows.get(4);
+    assertFalse(last.containsKey("_rev"));
+    last.refresh();
+    assertNotNull(last.get("_rev"));
+  }
+
   /**
    * Test to demonstrate that the query string isn't being passed for adhoc
    * views.
@@ -80,6 +115,98 @@ public class ViewTest {
 	  
   }	
 
+  @Test
+  public void stream() throws Exception {
+    int all = foo.getAllDocuments().getResults().size();
+    ViewCursor cursor = foo.streamAllDocuments();
+    assertNotNull(cursor);
+    int streamed = 0;
+    try {
+      while (cursor.hasNext()) {
+        assertNotNull(cursor.next().getId());
+        streamed++;
+      }
+    } finally {
+      cursor.close();
+    }
+    assertEquals(all, streamed);
+    assertEquals(all, cursor.getTotalRows());
+    assertFalse(cursor.hasNext());
+  }
+
+  @Test
+  public void page() throws Exception {
+    List<Document> all = foo.getAllDocuments().getResults();
+    ViewPager pager = foo.pageAllDocuments(2);
+    List<String> paged = new ArrayList<String>();
+    try {
+      while (pager.hasNext()) {
+        paged.add(pager.next().getId());
+      }
+    } finally {
+      pager.close();
+    }
+    assertEquals(all.size(), paged.size());
+    for (int i = 0; i < all.size(); i++) {
+      assertEquals(all.get(i).getId(), paged.get(i));
+    }
+    assertEquals(3, pager.getPageCount());
+  }
+
+  @Test
+  public void scan() throws Exception {
+    List<Document> all = foo.getAllDocuments().getResults();
+    ViewScan scan = foo.createViewScan(new View("_all_docs"));
+    scan.setPartitions(3);
+    assertEquals(3, scan.getRanges().size());
+    List<Document> scanned = scan.getRows();
+    assertEquals(all.size(), scanned.size());
+    for (int i = 0; i < all.size(); i++) {
+      assertEquals(all.get(i).getId(), scanned.get(i).getId());
+    }
+  }
+
+  @Test
+  public void keys() throws Exception {
+    List<Document> all = foo.getAllDocuments().getResults();
+    List<String> ids = new ArrayList<String>();
+    for (int i = all.size() - 1; i >= 0; i--) {
+      ids.add(all.get(i).getId());
+    }
+    foo.setBulkFetchSize(2);
+    View view = new View("_all_docs");
+    view.setKeys(ids);
+    List<Document> rows = foo.view(view).getResults();
+    assertEquals(ids.size(), rows.size());
+    for (int i = 0; i < ids.size(); i++) {
+      assertEquals(ids.get(i), rows.get(i).getId());
+    }
+
+    // on a one thread executor, the chunks of viewAsync can't wait for a free thread
+    ExecutorService pool = Executors.newFixedThreadPool(1);
+    sess.setExecutor(pool);
+    rows = foo.viewAsync(view).get(30, TimeUnit.SECONDS).getResults();
+    assertEquals(ids.size(), rows.size());
+    pool.shutdown();
+
+    // limit and skip apply to all the keys, not to each chunk
+    view.setSkip("1");
+    view.setLimit(2);
+    rows = foo.view(view).getResults();
+    assertEquals(2, rows.size());
+    assertEquals(ids.get(1), rows.get(0).getId());
+    assertEquals(ids.get(2), rows.get(1).getId());
+  }
+
+  @Test
+  public void viewTo() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    long written = foo.allDocumentsTo(out);
+    assertEquals(out.size(), written);
+    JSONObject json = JSONObject.fromObject(out.toString("UTF-8"));
+    assertEquals(foo.getAllDocuments().getResults().size(), json.getJSONArray("rows").size());
+  }
+
   @Test
   public void adhoc2() {
     int adhoc = foo.adhoc("function (doc){ if (doc.foo=='bar'){ emit(doc, doc)}}").getResults().size();